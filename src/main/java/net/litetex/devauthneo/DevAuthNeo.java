@@ -10,7 +10,11 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -19,7 +23,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.litetex.devauthneo.auth.AuthProvider;
+import net.litetex.devauthneo.auth.microsoft.BackgroundTokenRefresher;
 import net.litetex.devauthneo.auth.microsoft.MicrosoftAuthProvider;
+import net.litetex.devauthneo.auth.microsoft.SessionHotSwapper;
+import net.litetex.devauthneo.auth.shared.HttpClientUtil;
 import net.litetex.devauthneo.config.DevAuthNeoConfig;
 import net.litetex.devauthneo.shared.config.ConfigValueContainer;
 import net.litetex.devauthneo.shared.config.Configuration;
@@ -31,9 +38,16 @@ public class DevAuthNeo
 {
 	public static final Logger LOG = LoggerFactory.getLogger(DevAuthNeo.class);
 	
+	private static DevAuthNeo instance;
+	
 	private final Path userhomeConfigFilePath;
 	private final DevAuthNeoConfig config;
 	
+	private CompletableFuture<ResolvedLogin> preLaunchLogin;
+	private boolean preLaunchLoginJoined;
+	// The login that was passed to the game
+	private volatile ResolvedLogin activeLogin;
+	
 	public DevAuthNeo()
 	{
 		final Path defaultDir = Paths.get(System.getProperty("user.home")).resolve(".dev-auth-neo");
@@ -58,39 +72,79 @@ public class DevAuthNeo
 			}
 		}
 		
+		HttpClientUtil.configure(this.config.http(), this.config.stateDir());
+		
 		LOG.debug("Initialized");
 	}
 	
-	public String[] processArguments(final String[] args)
+	public DevAuthNeoConfig config()
 	{
-		if(!this.config.enabled())
+		return this.config;
+	}
+	
+	public static synchronized DevAuthNeo instance()
+	{
+		if(instance == null)
 		{
-			LOG.info("DevAuth disabled. Set e.g. -Ddevauth.enabled=1 to enable");
-			return args;
+			instance = new DevAuthNeo();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Starts resolving the login (reading the state, refreshing tokens, etc.) in the background so that it overlaps
+	 * with the bootstrap of the game. The result is only waited for once the game creates its session (see
+	 * {@link #joinPreLaunchLogin()}).
+	 */
+	public synchronized void startPreLaunchLogin()
+	{
+		if(!this.config.enabled() || !this.config.preLaunchLogin() || this.preLaunchLogin != null)
+		{
+			return;
+		}
+		if(this.config.account().value() == null || this.config.accountType().value() == null)
+		{
+			LOG.info("Account is not configured - Login will be executed when the game is started");
+			return;
 		}
 		
-		final Map<String, AuthProvider> authProviders = Map.of(
-			MicrosoftAuthProvider.IDENTIFIER, new MicrosoftAuthProvider(this.config));
-		
-		if(!this.readFromSysInIfEmpty(this.config.account(), () -> "account")
-			|| !this.readFromSysInIfEmpty(
-			this.config.accountType(),
-			() -> "account type [" + String.join(", ", authProviders.keySet()) + "]"))
+		LOG.debug("Starting login in pre-launch");
+		final CompletableFuture<ResolvedLogin> future = new CompletableFuture<>();
+		Thread.ofVirtual()
+			.name("DevAuthNeo-PreLaunchLogin")
+			// Errors must also be handed to the game - otherwise it would wait forever
+			.uncaughtExceptionHandler((t, err) -> future.completeExceptionally(err))
+			.start(() -> {
+				try
+				{
+					future.complete(this.resolveLogin());
+				}
+				catch(final Exception ex)
+				{
+					future.completeExceptionally(ex);
+				}
+			});
+		this.preLaunchLogin = future;
+	}
+	
+	public String[] processArguments(final String[] args)
+	{
+		synchronized(this)
 		{
-			return args;
+			if(this.preLaunchLogin != null)
+			{
+				LOG.debug("Pre-launch login is running - Applying it once the session of the game is created");
+				return args;
+			}
 		}
 		
-		final String accountType = this.config.accountType().value();
-		final AuthProvider ap = authProviders.get(accountType);
-		if(ap == null)
+		final ResolvedLogin login = this.resolveLogin();
+		if(login == null)
 		{
-			LOG.warn("Unknown account type: {}", accountType);
 			return args;
 		}
 		
-		final Map<String, String> loginOverrideArgValues = ap.getLoginParams(this.config.account().value());
-		
-		final Set<String> argsToIgnore = ap.possibleArgs()
+		final Set<String> argsToIgnore = login.authProvider().possibleArgs()
 			.stream()
 			.map(s -> "--" + s)
 			.collect(Collectors.toSet());
@@ -109,16 +163,150 @@ public class DevAuthNeo
 			}
 		}
 		
-		LOG.info("DevAuth active for account '{}'", this.config.account().value());
+		this.activate(login);
 		
 		return Stream.concat(
 				cleanedArgs.stream(),
-				loginOverrideArgValues.entrySet()
+				login.loginParams().entrySet()
 					.stream()
 					.map(e -> "--" + e.getKey() + "=" + e.getValue()))
 			.toArray(String[]::new);
 	}
 	
+	/**
+	 * Waits for the pre-launch login (if one was started) so that it can be applied to the session of the game.
+	 *
+	 * @return the login params - only for the first invocation
+	 */
+	public Optional<Map<String, String>> joinPreLaunchLogin()
+	{
+		final CompletableFuture<ResolvedLogin> future;
+		synchronized(this)
+		{
+			future = this.preLaunchLogin;
+			if(future == null || this.preLaunchLoginJoined)
+			{
+				return Optional.empty();
+			}
+			this.preLaunchLoginJoined = true;
+		}
+		
+		final ResolvedLogin login;
+		final long startMs = System.currentTimeMillis();
+		try
+		{
+			login = future.join();
+		}
+		catch(final CompletionException ex)
+		{
+			// Rethrow the original failure (as if the login was executed on this thread)
+			if(ex.getCause() instanceof final RuntimeException cause)
+			{
+				throw cause;
+			}
+			if(ex.getCause() instanceof final Error cause)
+			{
+				throw cause;
+			}
+			throw ex;
+		}
+		finally
+		{
+			LOG.debug("Waited {}ms for pre-launch login", System.currentTimeMillis() - startMs);
+		}
+		
+		if(login == null)
+		{
+			return Optional.empty();
+		}
+		this.activate(login);
+		return Optional.of(login.loginParams());
+	}
+	
+	private void activate(final ResolvedLogin login)
+	{
+		LOG.info("DevAuth active for account '{}'", this.config.account().value());
+		this.activeLogin = login;
+		
+		if(this.config.backgroundRefresh().enabled())
+		{
+			new BackgroundTokenRefresher(
+				new MicrosoftAuthProvider(this.config, false),
+				this.config.backgroundRefresh()
+			).start();
+		}
+	}
+	
+	/**
+	 * Starts renewing the session of the running game before it expires (if enabled).
+	 *
+	 * @param swapAccessToken replaces the previous access token (first argument) of the game with the new one
+	 */
+	public void startSessionHotSwap(final BiConsumer<String, String> swapAccessToken)
+	{
+		final ResolvedLogin login = this.activeLogin;
+		if(!this.config.sessionHotSwap().enabled()
+			|| login == null
+			|| !(login.authProvider() instanceof final MicrosoftAuthProvider microsoftAuthProvider))
+		{
+			return;
+		}
+		
+		LOG.debug("Starting session hot swap");
+		new SessionHotSwapper(
+			microsoftAuthProvider,
+			this.config.account().value(),
+			login.loginParams().get(MicrosoftAuthProvider.ACCESS_TOKEN),
+			this.config.sessionHotSwap(),
+			swapAccessToken
+		).start();
+	}
+	
+	private ResolvedLogin resolveLogin()
+	{
+		if(!this.config.enabled())
+		{
+			LOG.info("DevAuth disabled. Set e.g. -Ddevauth.enabled=1 to enable");
+			return null;
+		}
+		
+		final Map<String, AuthProvider> authProviders = Map.of(
+			MicrosoftAuthProvider.IDENTIFIER, new MicrosoftAuthProvider(this.config));
+		
+		if(!this.readFromSysInIfEmpty(this.config.account(), () -> "account")
+			|| !this.readFromSysInIfEmpty(
+			this.config.accountType(),
+			() -> "account type [" + String.join(", ", authProviders.keySet()) + "]"))
+		{
+			return null;
+		}
+		
+		final String accountType = this.config.accountType().value();
+		final AuthProvider ap = authProviders.get(accountType);
+		if(ap == null)
+		{
+			LOG.warn("Unknown account type: {}", accountType);
+			return null;
+		}
+		
+		final Map<String, String> loginParams;
+		try
+		{
+			loginParams = ap.getLoginParams(this.config.account().value());
+		}
+		finally
+		{
+			HttpClientUtil.closeSharedHttpClient();
+		}
+		
+		if(loginParams.isEmpty())
+		{
+			LOG.warn("No login information available - Arguments are left unchanged");
+			return null;
+		}
+		return new ResolvedLogin(ap, loginParams);
+	}
+	
 	private boolean readFromSysInIfEmpty(
 		final ConfigValueContainer<String> cvc,
 		final Supplier<String> supplierAttributeForMsg)
@@ -151,4 +339,11 @@ public class DevAuthNeo
 		}
 		return true;
 	}
+	
+	record ResolvedLogin(
+		AuthProvider authProvider,
+		Map<String, String> loginParams
+	)
+	{
+	}
 }
@@ -0,0 +1,13 @@
+package net.litetex.devauthneo;
+
+import net.fabricmc.loader.api.entrypoint.PreLaunchEntrypoint;
+
+
+public class DevAuthNeoPreLaunch implements PreLaunchEntrypoint
+{
+	@Override
+	public void onPreLaunch()
+	{
+		DevAuthNeo.instance().startPreLaunchLogin();
+	}
+}
@@ -0,0 +1,209 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
+import net.litetex.devauthneo.auth.microsoft.token.Token;
+import net.litetex.devauthneo.auth.microsoft.token.TokenKey;
+import net.litetex.devauthneo.auth.microsoft.token.XBLToken;
+import net.litetex.devauthneo.config.state.StateLayout;
+
+
+/**
+ * Compares the {@link StateLayout}s using generated accounts (with tokens of realistic sizes) in a temporary
+ * directory.
+ * <p>
+ * Each operation is executed a few times as warm-up (JIT, file system caches) before the average of repeated
+ * executions is measured.
+ * </p>
+ */
+public final class AccountStateBenchmark
+{
+	public static final List<Integer> DEFAULT_ACCOUNT_COUNTS = List.of(1, 100, 10_000);
+	
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int ITERATIONS = 10;
+	private static final int READ_ITERATIONS = 100;
+	
+	// Approximate sizes of real tokens
+	private static final int OAUTH_TOKEN_LENGTH = 1_400;
+	private static final int REFRESH_TOKEN_LENGTH = 500;
+	private static final int XBL_TOKEN_LENGTH = 1_000;
+	private static final int USER_HASH_LENGTH = 19;
+	private static final int SESSION_TOKEN_LENGTH = 400;
+	private static final int NAME_LENGTH = 12;
+	private static final Duration TOKEN_LIFETIME = Duration.ofHours(16);
+	
+	private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+	
+	private AccountStateBenchmark()
+	{
+	}
+	
+	public static List<Result> run(final Collection<StateLayout> layouts, final Collection<Integer> accountCounts)
+		throws IOException
+	{
+		final List<Result> results = new ArrayList<>();
+		for(final int accountCount : accountCounts)
+		{
+			final Map<String, AccountStateStore.AccountState> accountStates = generate(accountCount);
+			for(final StateLayout layout : layouts)
+			{
+				final Path stateDir = Files.createTempDirectory("dev-auth-neo-benchmark");
+				try
+				{
+					results.add(run(layout, stateDir, accountStates));
+				}
+				finally
+				{
+					deleteRecursively(stateDir);
+				}
+			}
+		}
+		return results;
+	}
+	
+	private static Result run(
+		final StateLayout layout,
+		final Path stateDir,
+		final Map<String, AccountStateStore.AccountState> accountStates) throws IOException
+	{
+		final Path lockDir = stateDir.resolve("locks");
+		final AccountStateStore store = AccountStateStore.create(layout, stateDir, lockDir);
+		final List<String> accounts = List.copyOf(accountStates.keySet());
+		
+		final Duration writeAll = average(ITERATIONS, () -> store.write(accountStates));
+		final Duration readOne = average(READ_ITERATIONS, () -> store.read(randomElement(accounts)));
+		final Duration readAll = average(ITERATIONS, store::readAll);
+		final Duration updateOne = average(ITERATIONS, () -> store.write(Map.of(
+			randomElement(accounts),
+			new AccountStateStore.AccountState(null, generateProfileInfo()))));
+		
+		final long sizeBytes;
+		try(final Stream<Path> files = Files.walk(stateDir))
+		{
+			sizeBytes = files
+				.filter(p -> !p.startsWith(lockDir) && Files.isRegularFile(p))
+				.mapToLong(p -> p.toFile().length())
+				.sum();
+		}
+		
+		return new Result(layout, accounts.size(), sizeBytes, writeAll, readOne, readAll, updateOne);
+	}
+	
+	/**
+	 * @return the average duration of the operation after it was warmed up
+	 */
+	private static Duration average(final int iterations, final Operation operation) throws IOException
+	{
+		for(int i = 0; i < WARMUP_ITERATIONS; i++)
+		{
+			operation.execute();
+		}
+		
+		final long startNs = System.nanoTime();
+		for(int i = 0; i < iterations; i++)
+		{
+			operation.execute();
+		}
+		return Duration.ofNanos((System.nanoTime() - startNs) / iterations);
+	}
+	
+	private static Map<String, AccountStateStore.AccountState> generate(final int accountCount)
+	{
+		final Instant expiry = Instant.now().plus(TOKEN_LIFETIME);
+		
+		final Map<String, AccountStateStore.AccountState> accountStates = new HashMap<>();
+		for(int i = 0; i < accountCount; i++)
+		{
+			final Tokens tokens = new Tokens();
+			tokens.set(TokenKey.OAUTH_TOKEN, new OAuthToken(
+				randomString(OAUTH_TOKEN_LENGTH),
+				randomString(REFRESH_TOKEN_LENGTH),
+				expiry));
+			tokens.set(TokenKey.XBL_TOKEN, new XBLToken(randomString(XBL_TOKEN_LENGTH), null, expiry));
+			tokens.set(TokenKey.XSTS_TOKEN, new XBLToken(
+				randomString(XBL_TOKEN_LENGTH),
+				randomString(USER_HASH_LENGTH),
+				expiry));
+			tokens.set(TokenKey.SESSION_TOKEN, new Token(randomString(SESSION_TOKEN_LENGTH), expiry));
+			
+			accountStates.put(
+				"account-" + i + "@example.org",
+				new AccountStateStore.AccountState(tokens, generateProfileInfo()));
+		}
+		return accountStates;
+	}
+	
+	private static MicrosoftAuthProvider.ProfileInfo generateProfileInfo()
+	{
+		return new MicrosoftAuthProvider.ProfileInfo(
+			UUID.randomUUID().toString().replace("-", ""),
+			randomString(NAME_LENGTH),
+			Instant.now());
+	}
+	
+	private static String randomString(final int length)
+	{
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final StringBuilder sb = new StringBuilder(length);
+		for(int i = 0; i < length; i++)
+		{
+			sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+	
+	private static <T> T randomElement(final List<T> list)
+	{
+		return list.get(ThreadLocalRandom.current().nextInt(list.size()));
+	}
+	
+	private static void deleteRecursively(final Path dir) throws IOException
+	{
+		try(final Stream<Path> files = Files.walk(dir))
+		{
+			for(final Path file : files.sorted(Comparator.reverseOrder()).toList())
+			{
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+	
+	@FunctionalInterface
+	private interface Operation
+	{
+		void execute() throws IOException;
+	}
+	
+	/**
+	 * All durations are averages.
+	 *
+	 * @param readOne   duration to read a single (random) account
+	 * @param updateOne duration to update the profile info of a single (random) account
+	 */
+	public record Result(
+		StateLayout layout,
+		int accounts,
+		long sizeBytes,
+		Duration writeAll,
+		Duration readOne,
+		Duration readAll,
+		Duration updateOne
+	)
+	{
+	}
+}
@@ -0,0 +1,46 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.config.state.StateLayout;
+
+
+/**
+ * Copies the state of all accounts from one {@link StateLayout} into another, e.g. to import a JSON file into the
+ * binary format or to export the binary format as JSON.
+ */
+public final class AccountStateConverter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(AccountStateConverter.class);
+	
+	private AccountStateConverter()
+	{
+	}
+	
+	/**
+	 * @return the number of copied accounts
+	 */
+	public static int convert(final Path stateDir, final StateLayout source, final StateLayout target)
+		throws IOException
+	{
+		final Path lockDir = stateDir.resolve("locks");
+		
+		final long startMs = System.currentTimeMillis();
+		final Map<String, AccountStateStore.AccountState> accountStates =
+			AccountStateStore.create(source, stateDir, lockDir).readAll();
+		AccountStateStore.create(target, stateDir, lockDir).write(accountStates);
+		
+		LOG.info(
+			"Copied {}x accounts from {} to {} in {}ms",
+			accountStates.size(),
+			source.identifier(),
+			target.identifier(),
+			System.currentTimeMillis() - startMs);
+		return accountStates.size();
+	}
+}
@@ -0,0 +1,55 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+
+import net.litetex.devauthneo.config.state.StateLayout;
+
+
+/**
+ * Persists the state (tokens, profile info) of the accounts.
+ */
+interface AccountStateStore
+{
+	/**
+	 * @return the state of the account or empty if nothing is persisted for it
+	 */
+	Optional<AccountState> read(String account) throws IOException;
+	
+	Map<String, AccountState> readAll() throws IOException;
+	
+	/**
+	 * Writes the given (non-null) values of the accounts. The state of other accounts (e.g. written by other
+	 * processes in the meantime) is retained.
+	 */
+	void write(Map<String, AccountState> updates) throws IOException;
+	
+	static AccountStateStore create(final StateLayout layout, final Path stateDir, final Path lockDir)
+	{
+		return switch(layout)
+		{
+			case SINGLE_FILE -> new SingleFileAccountStateStore(stateDir, lockDir);
+			case SHARDED -> new ShardedAccountStateStore(stateDir, lockDir);
+			case BINARY -> new BinaryAccountStateStore(stateDir, lockDir);
+			case JOURNAL -> new JournalAccountStateStore(stateDir, lockDir);
+		};
+	}
+	
+	record AccountState(
+		Tokens tokens,
+		MicrosoftAuthProvider.ProfileInfo profileInfo
+	)
+	{
+		/**
+		 * @return the state with the (non-null) values of the newer state applied
+		 */
+		AccountState mergeWith(final AccountState newer)
+		{
+			return new AccountState(
+				newer.tokens() != null ? newer.tokens() : this.tokens(),
+				newer.profileInfo() != null ? newer.profileInfo() : this.profileInfo());
+		}
+	}
+}
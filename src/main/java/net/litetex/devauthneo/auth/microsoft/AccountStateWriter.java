@@ -0,0 +1,149 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Collects updates of accounts and writes them into the {@link AccountStateStore}.
+ * <p>
+ * Updates are immutable snapshots, so the state can't be modified (e.g. by a running login) while it's written.
+ * Multiple updates that happen within a short time (e.g. updated tokens followed by a revalidated profile info) are
+ * coalesced into a single write. Pending updates are written when the JVM shuts down.
+ * </p>
+ */
+final class AccountStateWriter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(AccountStateWriter.class);
+	
+	private static final Duration DEBOUNCE = Duration.ofMillis(500);
+	
+	// Only writers with pending updates are contained, so that discarded writers are not kept alive
+	private static final Set<AccountStateWriter> WRITERS_WITH_PENDING_UPDATES = ConcurrentHashMap.newKeySet();
+	
+	static
+	{
+		// A single hook for all writers
+		Runtime.getRuntime().addShutdownHook(Thread.ofPlatform()
+			.name("DevAuthNeo-StateWriter-Shutdown")
+			.unstarted(() -> List.copyOf(WRITERS_WITH_PENDING_UPDATES).forEach(AccountStateWriter::flush)));
+	}
+	
+	private final AccountStateStore store;
+	// Ensures that the updates are written in the order they were made
+	private final Object writeLock = new Object();
+	
+	// Guarded by this
+	private Map<String, AccountStateStore.AccountState> pendingUpdates = new LinkedHashMap<>();
+	private boolean flushScheduled;
+	
+	AccountStateWriter(final AccountStateStore store)
+	{
+		this.store = store;
+	}
+	
+	/**
+	 * Queues the given (non-null) values of the account for writing.
+	 */
+	synchronized void update(
+		final String account,
+		final Tokens tokens,
+		final MicrosoftAuthProvider.ProfileInfo profileInfo)
+	{
+		this.pendingUpdates.merge(
+			account,
+			new AccountStateStore.AccountState(tokens != null ? tokens.copy() : null, profileInfo),
+			AccountStateStore.AccountState::mergeWith);
+		WRITERS_WITH_PENDING_UPDATES.add(this);
+	}
+	
+	/**
+	 * Writes the pending updates after a short delay, so that further updates are written together with them.
+	 */
+	synchronized void flushDebounced()
+	{
+		if(this.flushScheduled)
+		{
+			return;
+		}
+		this.flushScheduled = true;
+		
+		Thread.ofVirtual()
+			.name("DevAuthNeo-StateWriter")
+			.start(() -> {
+				try
+				{
+					Thread.sleep(DEBOUNCE);
+				}
+				catch(final InterruptedException ex)
+				{
+					Thread.currentThread().interrupt();
+				}
+				this.flush();
+			});
+	}
+	
+	/**
+	 * Writes the pending updates (if any) immediately.
+	 */
+	void flush()
+	{
+		synchronized(this.writeLock)
+		{
+			try
+			{
+				this.write(this.drainPendingUpdates());
+			}
+			finally
+			{
+				// Only afterward, so that the shutdown hook waits for a running write
+				this.unregisterIfNoPendingUpdates();
+			}
+		}
+	}
+	
+	private void write(final Map<String, AccountStateStore.AccountState> updates)
+	{
+		if(updates.isEmpty())
+		{
+			return;
+		}
+		
+		final long startMs = System.currentTimeMillis();
+		try
+		{
+			this.store.write(updates);
+			LOG.debug(
+				"Took {}ms to write {}x updated accounts",
+				System.currentTimeMillis() - startMs,
+				updates.size());
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to write state of accounts {}", updates.keySet(), ex);
+		}
+	}
+	
+	private synchronized Map<String, AccountStateStore.AccountState> drainPendingUpdates()
+	{
+		final Map<String, AccountStateStore.AccountState> updates = this.pendingUpdates;
+		this.pendingUpdates = new LinkedHashMap<>();
+		this.flushScheduled = false;
+		return updates;
+	}
+	
+	private synchronized void unregisterIfNoPendingUpdates()
+	{
+		if(this.pendingUpdates.isEmpty())
+		{
+			WRITERS_WITH_PENDING_UPDATES.remove(this);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.auth.shared.ServerClock;
+import net.litetex.devauthneo.config.refresh.BackgroundRefreshConfig;
+
+
+/**
+ * Refreshes the tokens of all cached accounts in the background while the game is running, so that the next launch
+ * doesn't need to.
+ * <p>
+ * The refreshes are ordered by the expiry of the session tokens and executed one after another on a single virtual
+ * thread, so that they don't compete with the game. No interactive logins are executed - accounts that require one
+ * are no longer refreshed.<br/>
+ * The shared HTTP client is closed after each refresh.
+ * </p>
+ */
+public final class BackgroundTokenRefresher
+{
+	private static final Logger LOG = LoggerFactory.getLogger(BackgroundTokenRefresher.class);
+	
+	// Prevents refreshing continuously when the refresh ahead duration exceeds the lifetime of a session
+	private static final Duration MIN_INTERVAL = Duration.ofMinutes(10);
+	private static final Duration RETRY_AFTER_FAILURE = Duration.ofMinutes(10);
+	
+	private final MicrosoftAuthProvider authProvider;
+	private final BackgroundRefreshConfig config;
+	// Only accessed by the refresher thread
+	private final PriorityQueue<ScheduledRefresh> queue =
+		new PriorityQueue<>(Comparator.comparing(ScheduledRefresh::at));
+	
+	public BackgroundTokenRefresher(final MicrosoftAuthProvider authProvider, final BackgroundRefreshConfig config)
+	{
+		this.authProvider = authProvider;
+		this.config = config;
+	}
+	
+	public void start()
+	{
+		Thread.ofVirtual()
+			.name("DevAuthNeo-BackgroundRefresh")
+			.start(this::run);
+	}
+	
+	private void run()
+	{
+		try
+		{
+			this.authProvider.sessionExpiries().forEach(this::scheduleBeforeExpiry);
+			
+			while(!this.queue.isEmpty())
+			{
+				final ScheduledRefresh next = this.queue.poll();
+				final Duration untilRefresh = Duration.between(ServerClock.now(), next.at());
+				if(untilRefresh.isPositive())
+				{
+					Thread.sleep(untilRefresh);
+				}
+				this.refresh(next.account());
+			}
+			LOG.debug("No more accounts to refresh");
+		}
+		catch(final InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Background refresh failed unexpectedly", ex);
+		}
+	}
+	
+	private void refresh(final String account)
+	{
+		LOG.debug("Refreshing tokens in background");
+		try
+		{
+			this.authProvider.getLoginParams(account, LoginOptions.background(this.config.refreshAhead()));
+			this.authProvider.sessionExpiry(account).ifPresent(expiry -> this.scheduleBeforeExpiry(account, expiry));
+		}
+		catch(final InteractiveLoginRequiredException ex)
+		{
+			LOG.info("Account requires an interactive login - No longer refreshing it in the background");
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to refresh tokens in background - Retrying in {}", RETRY_AFTER_FAILURE, ex);
+			this.schedule(account, ServerClock.now().plus(RETRY_AFTER_FAILURE));
+		}
+		finally
+		{
+			// The next refresh is usually far away - don't keep the connections open until then
+			HttpClientUtil.closeSharedHttpClient();
+		}
+	}
+	
+	private void scheduleBeforeExpiry(final String account, final Instant sessionExpiry)
+	{
+		final Instant earliest = ServerClock.now().plus(MIN_INTERVAL);
+		final Instant at = sessionExpiry.minus(this.config.refreshAhead());
+		this.schedule(account, at.isBefore(earliest) ? earliest : at);
+	}
+	
+	private void schedule(final String account, final Instant at)
+	{
+		// Spread the refreshes (e.g. of multiple accounts or processes) so that they don't happen at once
+		final long jitterMs = ThreadLocalRandom.current().nextLong(this.config.jitter().toMillis() + 1);
+		this.queue.add(new ScheduledRefresh(account, at.plusMillis(jitterMs)));
+	}
+	
+	record ScheduledRefresh(
+		String account,
+		Instant at
+	)
+	{
+	}
+}
@@ -0,0 +1,421 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
+import net.litetex.devauthneo.auth.microsoft.token.Token;
+import net.litetex.devauthneo.auth.microsoft.token.TokenKey;
+import net.litetex.devauthneo.auth.microsoft.token.XBLToken;
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+
+
+/**
+ * Stores all accounts in a single compact binary file that is read using a memory mapping, so that a single account
+ * can be located and decoded without decoding (or allocating) the others.
+ * <p>
+ * Format (big endian, strings are UTF-8 prefixed with their length or {@code -1} for {@code null}):
+ * <pre>
+ * header:  magic (int), version (short), account count (int)
+ * index:   per account sorted by hash: account hash (long), record offset (int), record length (int)
+ * records: account (string), flags (byte), [token count (int), tokens], [profile info]
+ * token:   key (string), type (byte), token (string), expiry epoch ms (long), [refresh token | user hash (string)]
+ * profile: uuid (string), name (string), fetched at epoch ms (long)
+ * </pre>
+ * </p>
+ * <p>
+ * An existing {@link SingleFileAccountStateStore JSON file} is automatically imported on first access.
+ * </p>
+ */
+final class BinaryAccountStateStore implements AccountStateStore
+{
+	static final String FILE_NAME = "microsoft-accounts.bin";
+	private static final String STATE_FILE_LOCK_NAME = FILE_NAME;
+	
+	// "DANB"
+	private static final int MAGIC = 0x44414E42;
+	private static final short VERSION = 1;
+	// magic + version + account count
+	private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES + Integer.BYTES;
+	// account hash + record offset + record length
+	private static final int INDEX_ENTRY_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+	
+	private static final byte FLAG_TOKENS = 1;
+	private static final byte FLAG_PROFILE_INFO = 2;
+	private static final byte TYPE_TOKEN = 0;
+	private static final byte TYPE_OAUTH_TOKEN = 1;
+	private static final byte TYPE_XBL_TOKEN = 2;
+	private static final int NULL_LENGTH = -1;
+	private static final long NULL_INSTANT = Long.MIN_VALUE;
+	
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	// Windows can't replace a file while it's mapped (which is the case until the mapping is garbage collected)
+	private static final boolean MAP_FILE = !System.getProperty("os.name", "")
+		.toLowerCase(Locale.ROOT)
+		.startsWith("windows");
+	
+	private final Path file;
+	private final Path lockDir;
+	private final SingleFileMigration migration;
+	
+	BinaryAccountStateStore(final Path stateDir, final Path lockDir)
+	{
+		this.file = stateDir.resolve(FILE_NAME);
+		this.lockDir = lockDir;
+		this.migration = new SingleFileMigration(stateDir, lockDir);
+	}
+	
+	@Override
+	public Optional<AccountState> read(final String account) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		return readFile(this.file, buffer -> find(buffer, account)).orElse(Optional.empty());
+	}
+	
+	/**
+	 * Locates and decodes a single account.
+	 */
+	static Optional<AccountState> find(final ByteBuffer buffer, final String account) throws IOException
+	{
+		final int count = readHeader(buffer);
+		final long hash = hash(account);
+		
+		// Binary search for the first entry with the hash
+		int low = 0;
+		int high = count - 1;
+		while(low <= high)
+		{
+			final int mid = (low + high) >>> 1;
+			if(buffer.getLong(indexEntryPosition(mid)) < hash)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		
+		// Multiple accounts might have the same hash
+		for(int i = low; i < count && buffer.getLong(indexEntryPosition(i)) == hash; i++)
+		{
+			final ByteBuffer recordBuffer = recordBuffer(buffer, i);
+			if(account.equals(readString(recordBuffer)))
+			{
+				return Optional.of(readAccountState(recordBuffer));
+			}
+		}
+		return Optional.empty();
+	}
+	
+	@Override
+	public Map<String, AccountState> readAll() throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		return readFile(this.file, BinaryAccountStateStore::decodeAll).orElseGet(Map::of);
+	}
+	
+	@Override
+	public void write(final Map<String, AccountState> updates) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		try(final NamedFileLock ignored = NamedFileLock.acquire(
+			this.lockDir,
+			STATE_FILE_LOCK_NAME,
+			"saving the accounts"))
+		{
+			final Map<String, AccountState> accountStates = new HashMap<>(
+				readFile(this.file, BinaryAccountStateStore::decodeAll).orElseGet(Map::of));
+			updates.forEach((account, update) -> accountStates.merge(account, update, AccountState::mergeWith));
+			
+			AtomicFiles.write(this.file, encode(accountStates));
+		}
+	}
+	
+	/**
+	 * Reads the file using a memory mapping (if possible).
+	 */
+	static <R> Optional<R> readFile(final Path file, final BufferReader<R> reader) throws IOException
+	{
+		if(!Files.exists(file))
+		{
+			return Optional.empty();
+		}
+		
+		try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			final ByteBuffer buffer;
+			if(MAP_FILE)
+			{
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			else
+			{
+				buffer = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+				while(buffer.hasRemaining())
+				{
+					if(channel.read(buffer) < 0)
+					{
+						throw new EOFException("Unexpected end of file");
+					}
+				}
+				buffer.flip();
+			}
+			return Optional.of(reader.read(buffer));
+		}
+	}
+	
+	/**
+	 * @return the number of accounts
+	 */
+	private static int readHeader(final ByteBuffer buffer) throws IOException
+	{
+		if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+		{
+			throw new IOException("Not a valid binary state file");
+		}
+		final short version = buffer.getShort(Integer.BYTES);
+		if(version != VERSION)
+		{
+			throw new IOException("Unsupported binary state file version " + version);
+		}
+		return buffer.getInt(Integer.BYTES + Short.BYTES);
+	}
+	
+	static Map<String, AccountState> decodeAll(final ByteBuffer buffer) throws IOException
+	{
+		final int count = readHeader(buffer);
+		final Map<String, AccountState> accountStates = new HashMap<>();
+		for(int i = 0; i < count; i++)
+		{
+			final ByteBuffer recordBuffer = recordBuffer(buffer, i);
+			accountStates.put(readString(recordBuffer), readAccountState(recordBuffer));
+		}
+		return accountStates;
+	}
+	
+	private static int indexEntryPosition(final int index)
+	{
+		return HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+	}
+	
+	private static ByteBuffer recordBuffer(final ByteBuffer buffer, final int index)
+	{
+		final int position = indexEntryPosition(index) + Long.BYTES;
+		return buffer.slice(buffer.getInt(position), buffer.getInt(position + Integer.BYTES));
+	}
+	
+	static AccountState readAccountState(final ByteBuffer buffer)
+	{
+		final byte flags = buffer.get();
+		
+		Tokens tokens = null;
+		if((flags & FLAG_TOKENS) != 0)
+		{
+			tokens = new Tokens();
+			final int tokenCount = buffer.getInt();
+			for(int i = 0; i < tokenCount; i++)
+			{
+				final TokenKey<?> key = TokenKey.byName(readString(buffer));
+				final Token token = readToken(buffer);
+				// Skip unknown tokens (e.g. from a newer version)
+				if(key != null)
+				{
+					tokens.put(key, token);
+				}
+			}
+		}
+		
+		MicrosoftAuthProvider.ProfileInfo profileInfo = null;
+		if((flags & FLAG_PROFILE_INFO) != 0)
+		{
+			profileInfo = new MicrosoftAuthProvider.ProfileInfo(
+				readString(buffer),
+				readString(buffer),
+				readInstant(buffer));
+		}
+		
+		return new AccountState(tokens, profileInfo);
+	}
+	
+	private static Token readToken(final ByteBuffer buffer)
+	{
+		final byte type = buffer.get();
+		final String token = readString(buffer);
+		final Instant expiry = readInstant(buffer);
+		return switch(type)
+		{
+			case TYPE_OAUTH_TOKEN -> new OAuthToken(token, readString(buffer), expiry);
+			case TYPE_XBL_TOKEN -> new XBLToken(token, readString(buffer), expiry);
+			default -> new Token(token, expiry);
+		};
+	}
+	
+	static String readString(final ByteBuffer buffer)
+	{
+		final int length = buffer.getInt();
+		if(length == NULL_LENGTH)
+		{
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static Instant readInstant(final ByteBuffer buffer)
+	{
+		final long epochMs = buffer.getLong();
+		return epochMs != NULL_INSTANT ? Instant.ofEpochMilli(epochMs) : null;
+	}
+	
+	static byte[] encode(final Map<String, AccountState> accountStates) throws IOException
+	{
+		final List<EncodedRecord> records = new ArrayList<>(accountStates.size());
+		for(final Map.Entry<String, AccountState> entry : accountStates.entrySet())
+		{
+			records.add(new EncodedRecord(hash(entry.getKey()), encodeRecord(entry.getKey(), entry.getValue())));
+		}
+		records.sort(Comparator.comparingLong(EncodedRecord::hash));
+		
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(records.size());
+		
+		int offset = HEADER_SIZE + records.size() * INDEX_ENTRY_SIZE;
+		for(final EncodedRecord record : records)
+		{
+			out.writeLong(record.hash());
+			out.writeInt(offset);
+			out.writeInt(record.bytes().length);
+			offset += record.bytes().length;
+		}
+		for(final EncodedRecord record : records)
+		{
+			out.write(record.bytes());
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * Encodes the account and its (non-null) values.
+	 */
+	static byte[] encodeRecord(final String account, final AccountState accountState) throws IOException
+	{
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		writeString(out, account);
+		
+		final Tokens tokens = accountState.tokens();
+		final MicrosoftAuthProvider.ProfileInfo profileInfo = accountState.profileInfo();
+		out.writeByte((tokens != null ? FLAG_TOKENS : 0) | (profileInfo != null ? FLAG_PROFILE_INFO : 0));
+		
+		if(tokens != null)
+		{
+			final Map<TokenKey<?>, Token> entries = tokens.entries();
+			out.writeInt(entries.size());
+			for(final Map.Entry<TokenKey<?>, Token> entry : entries.entrySet())
+			{
+				writeString(out, entry.getKey().getName());
+				writeToken(out, entry.getValue());
+			}
+		}
+		if(profileInfo != null)
+		{
+			writeString(out, profileInfo.uuid());
+			writeString(out, profileInfo.name());
+			writeInstant(out, profileInfo.fetchedAt());
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+	
+	private static void writeToken(final DataOutputStream out, final Token token) throws IOException
+	{
+		final byte type = switch(token)
+		{
+			case final OAuthToken ignored -> TYPE_OAUTH_TOKEN;
+			case final XBLToken ignored -> TYPE_XBL_TOKEN;
+			default -> TYPE_TOKEN;
+		};
+		out.writeByte(type);
+		writeString(out, token.getToken());
+		writeInstant(out, token.getExpiry());
+		switch(token)
+		{
+			case final OAuthToken oAuthToken -> writeString(out, oAuthToken.getRefreshToken());
+			case final XBLToken xblToken -> writeString(out, xblToken.getUserHash());
+			default ->
+			{
+				// No additional fields
+			}
+		}
+	}
+	
+	private static void writeString(final DataOutputStream out, final String value) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static void writeInstant(final DataOutputStream out, final Instant instant) throws IOException
+	{
+		out.writeLong(instant != null ? instant.toEpochMilli() : NULL_INSTANT);
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 encoded account.
+	 */
+	private static long hash(final String account)
+	{
+		long hash = FNV_OFFSET_BASIS;
+		for(final byte b : account.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= Byte.toUnsignedInt(b);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	@FunctionalInterface
+	interface BufferReader<R>
+	{
+		R read(ByteBuffer buffer) throws IOException;
+	}
+	
+	
+	record EncodedRecord(
+		long hash,
+		byte[] bytes
+	)
+	{
+	}
+}
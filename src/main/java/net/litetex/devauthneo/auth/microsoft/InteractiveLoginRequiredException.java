@@ -0,0 +1,9 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+public class InteractiveLoginRequiredException extends IllegalStateException
+{
+	public InteractiveLoginRequiredException()
+	{
+		super("Tokens can't be refreshed - An interactive login is required");
+	}
+}
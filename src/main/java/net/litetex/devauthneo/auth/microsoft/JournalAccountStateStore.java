@@ -0,0 +1,394 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+
+
+/**
+ * Stores all accounts in a {@link BinaryAccountStateStore binary} snapshot and appends updates to a journal, so that
+ * accounts are not re-encoded on every write.
+ * <p>
+ * Before appending, the existing records are validated. The validated length is remembered, so only the records
+ * appended since then (e.g. by other processes) are validated again, unless the journal was compacted or
+ * truncated in the meantime.
+ * </p>
+ * <p>
+ * Journal record (big endian): payload length (int), CRC32 of the payload (int), payload: the account record of the
+ * binary format (only containing the updated values).
+ * </p>
+ * <p>
+ * Reading replays the journal on top of the snapshot. A record that was not written completely (e.g. due to a
+ * crash) fails the length or checksum validation. If no intact record follows it, it's discarded by the next write.
+ * Otherwise the journal was corrupted in the middle: the corrupted bytes are skipped (and reported) but never
+ * discarded, so that the following records are kept.<br/>
+ * Once the journal exceeds {@link #COMPACTION_THRESHOLD_BYTES} it's folded into a new snapshot in the background.
+ * The snapshot is replaced atomically before the journal is cleared, so a crash in between only results in the
+ * records being replayed again.
+ * </p>
+ * <p>
+ * Reads share a lock, while writes and compactions hold it exclusively, so that processes sharing the state
+ * directory never observe a partially appended record or a compaction halfway.<br/>
+ * An existing {@link SingleFileAccountStateStore JSON file} is automatically imported on first access.
+ * </p>
+ */
+final class JournalAccountStateStore implements AccountStateStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(JournalAccountStateStore.class);
+	
+	static final String SNAPSHOT_FILE_NAME = "microsoft-accounts.snapshot";
+	static final String JOURNAL_FILE_NAME = "microsoft-accounts.journal";
+	private static final String LOCK_NAME = JOURNAL_FILE_NAME;
+	private static final String LOCK_ACTIVITY = "accessing the stored accounts";
+	
+	static final long COMPACTION_THRESHOLD_BYTES = 256 * 1024;
+	
+	// payload length + checksum
+	private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+	
+	private final Path snapshotFile;
+	private final Path journalFile;
+	private final Path lockDir;
+	private final SingleFileMigration migration;
+	
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+	
+	// Only accessed while holding the lock exclusively
+	private ValidatedJournal validatedJournal;
+	
+	JournalAccountStateStore(final Path stateDir, final Path lockDir)
+	{
+		this.snapshotFile = stateDir.resolve(SNAPSHOT_FILE_NAME);
+		this.journalFile = stateDir.resolve(JOURNAL_FILE_NAME);
+		this.lockDir = lockDir;
+		this.migration = new SingleFileMigration(stateDir, lockDir);
+	}
+	
+	@Override
+	public Optional<AccountState> read(final String account) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		try(final NamedFileLock ignored = NamedFileLock.acquireShared(this.lockDir, LOCK_NAME, LOCK_ACTIVITY))
+		{
+			final Map<String, AccountState> accountStates = new HashMap<>();
+			BinaryAccountStateStore.readFile(this.snapshotFile, buffer -> BinaryAccountStateStore.find(buffer, account))
+				.flatMap(Function.identity())
+				.ifPresent(accountState -> accountStates.put(account, accountState));
+			this.replayJournal(accountStates, account);
+			return Optional.ofNullable(accountStates.get(account));
+		}
+	}
+	
+	@Override
+	public Map<String, AccountState> readAll() throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		try(final NamedFileLock ignored = NamedFileLock.acquireShared(this.lockDir, LOCK_NAME, LOCK_ACTIVITY))
+		{
+			return this.readAllLocked();
+		}
+	}
+	
+	private Map<String, AccountState> readAllLocked() throws IOException
+	{
+		final Map<String, AccountState> accountStates = new HashMap<>(
+			BinaryAccountStateStore.readFile(this.snapshotFile, BinaryAccountStateStore::decodeAll)
+				.orElseGet(Map::of));
+		this.replayJournal(accountStates, null);
+		return accountStates;
+	}
+	
+	/**
+	 * Applies the journal records (of the given account or all accounts if {@code null}) to the states.
+	 */
+	private void replayJournal(final Map<String, AccountState> accountStates, final String onlyAccount)
+		throws IOException
+	{
+		final ScanResult scanResult = BinaryAccountStateStore.readFile(
+			this.journalFile,
+			buffer -> scanJournal(buffer, payload -> {
+				final String account = BinaryAccountStateStore.readString(payload);
+				if(onlyAccount == null || onlyAccount.equals(account))
+				{
+					accountStates.merge(
+						account,
+						BinaryAccountStateStore.readAccountState(payload),
+						AccountState::mergeWith);
+				}
+			})).orElseGet(() -> new ScanResult(0, 0, 0));
+		this.logCorruption(scanResult);
+		
+		// e.g. when a lot of accounts were written at once or a compaction was interrupted
+		if(scanResult.length() > COMPACTION_THRESHOLD_BYTES)
+		{
+			this.scheduleCompaction();
+		}
+	}
+	
+	@Override
+	public void write(final Map<String, AccountState> updates) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		final CRC32 crc = new CRC32();
+		for(final Map.Entry<String, AccountState> entry : updates.entrySet())
+		{
+			final byte[] payload = BinaryAccountStateStore.encodeRecord(entry.getKey(), entry.getValue());
+			
+			crc.reset();
+			crc.update(payload);
+			out.writeInt(payload.length);
+			out.writeInt((int)crc.getValue());
+			out.write(payload);
+		}
+		out.flush();
+		
+		final long journalLength;
+		try(final NamedFileLock ignored = NamedFileLock.acquire(this.lockDir, LOCK_NAME, LOCK_ACTIVITY))
+		{
+			try(final FileChannel channel = FileChannel.open(
+				this.journalFile,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE))
+			{
+				final SnapshotVersion snapshotVersion = this.snapshotVersion();
+				final long intactLength = this.validateJournal(channel, snapshotVersion);
+				
+				// Only the incomplete records at the end (no intact record follows) are discarded
+				if(channel.size() > intactLength)
+				{
+					LOG.warn(
+						"Discarding {} bytes of incomplete records at the end of {}",
+						channel.size() - intactLength,
+						this.journalFile);
+					channel.truncate(intactLength);
+				}
+				
+				channel.position(intactLength);
+				final ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+				while(buffer.hasRemaining())
+				{
+					channel.write(buffer);
+				}
+				channel.force(false);
+				journalLength = channel.size();
+				this.validatedJournal = new ValidatedJournal(snapshotVersion, journalLength);
+			}
+		}
+		
+		if(journalLength > COMPACTION_THRESHOLD_BYTES)
+		{
+			this.scheduleCompaction();
+		}
+	}
+	
+	/**
+	 * @return the end of the last intact record
+	 */
+	private long validateJournal(final FileChannel channel, final SnapshotVersion snapshotVersion)
+		throws IOException
+	{
+		final long size = channel.size();
+		final ValidatedJournal validated = this.validatedJournal;
+		// Otherwise another process compacted the journal in the meantime -> the remembered length is meaningless
+		final long start = validated != null
+			&& validated.snapshotVersion().equals(snapshotVersion)
+			&& validated.length() <= size
+			? validated.length()
+			: 0;
+		
+		// The remembered length is the end of a record -> the remaining records can be scanned like a journal
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size - start));
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, start + buffer.position()) < 0)
+			{
+				throw new EOFException("Unexpected end of file");
+			}
+		}
+		buffer.flip();
+		
+		final ScanResult scanResult = scanJournal(buffer, payload -> {
+			// Only validated
+		});
+		this.logCorruption(scanResult);
+		return start + scanResult.intactLength();
+	}
+	
+	private SnapshotVersion snapshotVersion() throws IOException
+	{
+		if(!Files.exists(this.snapshotFile))
+		{
+			return new SnapshotVersion(null, null);
+		}
+		// The snapshot is atomically replaced by each compaction
+		final BasicFileAttributes attributes = Files.readAttributes(this.snapshotFile, BasicFileAttributes.class);
+		return new SnapshotVersion(attributes.fileKey(), attributes.lastModifiedTime());
+	}
+	
+	/**
+	 * @param fileKey      might be {@code null} if not supported by the platform
+	 * @param lastModified {@code null} if there is no snapshot
+	 */
+	private record SnapshotVersion(Object fileKey, FileTime lastModified)
+	{
+	}
+	
+	/**
+	 * @param length the end of the last intact record, the journal was validated up to it
+	 */
+	private record ValidatedJournal(SnapshotVersion snapshotVersion, long length)
+	{
+	}
+	
+	private void logCorruption(final ScanResult scanResult)
+	{
+		if(scanResult.skippedBytes() > 0)
+		{
+			LOG.error(
+				"Skipped {} bytes of corrupted records in the middle of {} - The following records are kept",
+				scanResult.skippedBytes(),
+				this.journalFile);
+		}
+	}
+	
+	/**
+	 * Invokes the consumer for each intact record (with the buffer positioned at the start of the payload).
+	 * <p>
+	 * When a record is invalid, the scan continues at the next intact record (found by searching for a position
+	 * where the length and checksum are valid). If there is none, the invalid records are the incomplete end of the
+	 * journal.
+	 * </p>
+	 */
+	private static ScanResult scanJournal(final ByteBuffer buffer, final Consumer<ByteBuffer> payloadConsumer)
+	{
+		final CRC32 crc = new CRC32();
+		int position = 0;
+		int intactLength = 0;
+		int skippedBytes = 0;
+		while(buffer.limit() - position >= RECORD_HEADER_SIZE)
+		{
+			if(!isIntactRecord(buffer, position, crc))
+			{
+				position++;
+				continue;
+			}
+			
+			final int length = buffer.getInt(position);
+			// Everything between the previous and this intact record is corrupted
+			skippedBytes += position - intactLength;
+			
+			payloadConsumer.accept(buffer.slice(position + RECORD_HEADER_SIZE, length));
+			position += RECORD_HEADER_SIZE + length;
+			intactLength = position;
+		}
+		return new ScanResult(intactLength, skippedBytes, buffer.limit());
+	}
+	
+	private static boolean isIntactRecord(final ByteBuffer buffer, final int position, final CRC32 crc)
+	{
+		final int length = buffer.getInt(position);
+		// Records are never empty (they contain at least the account), this also rejects zero-filled areas
+		if(length <= 0 || length > buffer.limit() - position - RECORD_HEADER_SIZE)
+		{
+			return false;
+		}
+		
+		crc.reset();
+		crc.update(buffer.slice(position + RECORD_HEADER_SIZE, length));
+		return (int)crc.getValue() == buffer.getInt(position + Integer.BYTES);
+	}
+	
+	/**
+	 * @param intactLength the end of the last intact record - everything after it is incomplete
+	 * @param skippedBytes how many bytes of corrupted records were skipped before the last intact record
+	 * @param length       the length of the whole journal
+	 */
+	private record ScanResult(int intactLength, int skippedBytes, int length)
+	{
+	}
+	
+	private void scheduleCompaction()
+	{
+		if(!this.compactionScheduled.compareAndSet(false, true))
+		{
+			return;
+		}
+		
+		Thread.ofVirtual()
+			.name("DevAuthNeo-StateCompaction")
+			.start(() -> {
+				try
+				{
+					this.compact();
+				}
+				catch(final Exception ex)
+				{
+					LOG.warn("Failed to compact {}", this.journalFile, ex);
+				}
+				finally
+				{
+					this.compactionScheduled.set(false);
+				}
+			});
+	}
+	
+	/**
+	 * Folds the journal into a new snapshot.
+	 */
+	void compact() throws IOException
+	{
+		try(final NamedFileLock ignored = NamedFileLock.acquire(this.lockDir, LOCK_NAME, LOCK_ACTIVITY))
+		{
+			// Another process might have compacted it in the meantime
+			if(!Files.exists(this.journalFile) || Files.size(this.journalFile) <= COMPACTION_THRESHOLD_BYTES)
+			{
+				return;
+			}
+			
+			final long startMs = System.currentTimeMillis();
+			final Map<String, AccountState> accountStates = this.readAllLocked();
+			AtomicFiles.write(this.snapshotFile, BinaryAccountStateStore.encode(accountStates));
+			
+			try(final FileChannel channel = FileChannel.open(
+				this.journalFile,
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				channel.force(true);
+			}
+			this.validatedJournal = null;
+			
+			LOG.debug(
+				"Took {}ms to compact {}x accounts into {}",
+				System.currentTimeMillis() - startMs,
+				accountStates.size(),
+				this.snapshotFile);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * Tracks how long each hop (e.g. a request or an interactive login) of the token chain took.
+ * <p>
+ * Is accessed by the threads executing the hops (which might run concurrently) and the thread waiting for them,
+ * therefore all methods are synchronized.
+ * </p>
+ */
+class LoginHopTracker
+{
+	private final Map<String, Long> completedHopsMs = new LinkedHashMap<>();
+	private long completedInteractiveMs;
+	
+	private final Map<String, RunningHop> runningHops = new LinkedHashMap<>();
+	
+	<T> T track(final String hop, final boolean interactive, final Supplier<T> action)
+	{
+		this.start(hop, interactive);
+		try
+		{
+			return action.get();
+		}
+		finally
+		{
+			this.end(hop);
+		}
+	}
+	
+	private synchronized void start(final String hop, final boolean interactive)
+	{
+		this.runningHops.put(hop, new RunningHop(System.currentTimeMillis(), interactive));
+	}
+	
+	private synchronized void end(final String hop)
+	{
+		final RunningHop runningHop = this.runningHops.remove(hop);
+		final long durationMs = System.currentTimeMillis() - runningHop.startMs();
+		this.completedHopsMs.merge(hop, durationMs, Long::sum);
+		if(runningHop.interactive())
+		{
+			this.completedInteractiveMs += durationMs;
+		}
+	}
+	
+	synchronized boolean isInteractionInProgress()
+	{
+		return this.runningHops.values().stream().anyMatch(RunningHop::interactive);
+	}
+	
+	/**
+	 * @return the time spent (or currently being spent) waiting for interactive logins
+	 */
+	synchronized long interactiveMs()
+	{
+		final long nowMs = System.currentTimeMillis();
+		return this.completedInteractiveMs + this.runningHops.values()
+			.stream()
+			.filter(RunningHop::interactive)
+			.mapToLong(h -> nowMs - h.startMs())
+			.sum();
+	}
+	
+	synchronized String report()
+	{
+		final long nowMs = System.currentTimeMillis();
+		final String report = Stream.concat(
+				this.completedHopsMs.entrySet()
+					.stream()
+					.map(e -> e.getKey() + "=" + e.getValue() + "ms"),
+				this.runningHops.entrySet()
+					.stream()
+					.map(e -> e.getKey() + "=" + (nowMs - e.getValue().startMs()) + "ms (in progress)"))
+			.collect(Collectors.joining(", "));
+		return report.isEmpty() ? "no hops executed" : report;
+	}
+	
+	record RunningHop(
+		long startMs,
+		boolean interactive
+	)
+	{
+	}
+}
@@ -0,0 +1,25 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.time.Duration;
+
+
+/**
+ * @param refreshAhead       tokens that expire within this duration are already refreshed
+ * @param interactiveAllowed if an interactive login (e.g. opening a browser) may be executed when the tokens can't
+ *                           be refreshed; otherwise an {@link InteractiveLoginRequiredException} is thrown
+ */
+public record LoginOptions(
+	Duration refreshAhead,
+	boolean interactiveAllowed
+)
+{
+	public static final LoginOptions DEFAULT = new LoginOptions(Duration.ZERO, true);
+	
+	/**
+	 * For refreshing in the background where no user is expected to interact.
+	 */
+	public static LoginOptions background(final Duration refreshAhead)
+	{
+		return new LoginOptions(refreshAhead, false);
+	}
+}
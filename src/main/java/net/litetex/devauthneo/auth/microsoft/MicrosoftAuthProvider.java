@@ -1,37 +1,44 @@
 package net.litetex.devauthneo.auth.microsoft;
 
-import static java.util.Objects.requireNonNullElseGet;
-
+import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpResponse;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import net.litetex.devauthneo.auth.AuthProvider;
 import net.litetex.devauthneo.auth.microsoft.oauth.OAuthGrantFlow;
 import net.litetex.devauthneo.auth.microsoft.oauth.authcode.EmbeddedAuthCodeGrantFlow;
 import net.litetex.devauthneo.auth.microsoft.oauth.authcode.ExternalAuthCodeGrantFlow;
 import net.litetex.devauthneo.auth.microsoft.oauth.devicecode.DeviceCodeGrantFlow;
+import net.litetex.devauthneo.auth.microsoft.token.Token;
+import net.litetex.devauthneo.auth.microsoft.token.TokenKey;
+import net.litetex.devauthneo.auth.microsoft.token.XBLToken;
+import net.litetex.devauthneo.auth.shared.FailureType;
 import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+import net.litetex.devauthneo.broker.BrokerClient;
 import net.litetex.devauthneo.config.DevAuthNeoConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.authcode.EmbeddedAuthCodeGrantFlowConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.authcode.ExternalAuthCodeGrantFlowConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.devicecode.DeviceCodeGrantFlowConfig;
-import net.litetex.devauthneo.shared.json.JSONSerializer;
 
 
 public class MicrosoftAuthProvider implements AuthProvider
@@ -42,21 +49,46 @@ public class MicrosoftAuthProvider implements AuthProvider
 	
 	public static final String IDENTIFIER = "microsoft";
 	
-	private static final String ACCESS_TOKEN = "accessToken";
-	private static final String UUID = "uuid";
-	private static final String USERNAME = "username";
+	public static final String ACCESS_TOKEN = "accessToken";
+	public static final String UUID = "uuid";
+	public static final String USERNAME = "username";
+	
+	private static final long DEADLINE_POLL_INTERVAL_MS = 250;
+	private static final long ABORTED_LOGIN_WAIT_MS = 500;
 	
 	private final DevAuthNeoConfig config;
-	private final Path file;
+	private final Path lockDir;
 	private final OAuthGrantFlow oAuthGrantFlow;
+	private final boolean queryBroker;
+	private final AccountStateStore store;
+	private final AccountStateWriter stateWriter;
+	private final List<TokenKey<XBLToken>> additionalXstsTokenKeys;
 	
-	private Map<String, Tokens> accountTokens = new HashMap<>();
-	private Map<String, ProfileInfo> accountProfileInfos = new HashMap<>();
+	// Cache of the persisted state - only contains the accounts that were read
+	private final Map<String, Tokens> accountTokens = new ConcurrentHashMap<>();
+	private final Map<String, ProfileInfo> accountProfileInfos = new ConcurrentHashMap<>();
 	
 	public MicrosoftAuthProvider(final DevAuthNeoConfig config)
+	{
+		this(config, config.broker().enabled());
+	}
+	
+	/**
+	 * @param queryBroker if the broker should be asked for the login params first (the broker itself doesn't)
+	 */
+	public MicrosoftAuthProvider(final DevAuthNeoConfig config, final boolean queryBroker)
 	{
 		this.config = config;
-		this.file = config.stateDir().resolve("microsoft-accounts.json");
+		this.queryBroker = queryBroker;
+		this.lockDir = config.stateDir().resolve("locks");
+		this.store = AccountStateStore.create(config.stateLayout(), config.stateDir(), this.lockDir);
+		this.stateWriter = new AccountStateWriter(this.store);
+		this.additionalXstsTokenKeys = config.xstsAdditionalRelyingParties()
+			.stream()
+			.map(TokenKey::xsts)
+			.filter(key -> !TokenKey.XSTS_TOKEN.equals(key))
+			.distinct()
+			.toList();
 		this.oAuthGrantFlow = switch(config.oAuth2())
 		{
 			case final EmbeddedAuthCodeGrantFlowConfig c -> new EmbeddedAuthCodeGrantFlow(c, config.stateDir());
@@ -75,28 +107,222 @@ public class MicrosoftAuthProvider implements AuthProvider
 	@Override
 	public Map<String, String> getLoginParams(final String account)
 	{
-		this.readFile();
+		if(this.queryBroker)
+		{
+			final Optional<Map<String, String>> optBrokeredLoginParams = BrokerClient.query(
+				this.config.stateDir(),
+				account,
+				this.config.broker().timeout());
+			if(optBrokeredLoginParams.isPresent())
+			{
+				LOG.debug("Using login params provided by broker");
+				return optBrokeredLoginParams.get();
+			}
+		}
+		
+		return this.getLoginParams(account, LoginOptions.DEFAULT);
+	}
+	
+	public Map<String, String> getLoginParams(final String account, final LoginOptions options)
+	{
+		this.readAccount(account);
 		
-		final MicrosoftTokenManager loginExecutor = new MicrosoftTokenManager(
+		final ProfileInfo cachedProfileInfo = this.accountProfileInfos.get(account);
+		final Set<URI> requiredEndpoints = this.requiredEndpoints(
+			this.createTokenManager(account, options),
+			cachedProfileInfo);
+		if(requiredEndpoints.isEmpty())
+		{
+			// Everything required is cached -> no need to coordinate with other processes
+			return this.login(account, options);
+		}
+		
+		if(!this.config.http().offlineProbe().isZero()
+			&& !HttpClientUtil.isAnyHostReachable(requiredEndpoints, this.config.http().offlineProbe()))
+		{
+			return this.cachedLoginParams(this.cachedSessionToken(account), cachedProfileInfo)
+				.map(loginParams -> {
+					LOG.warn("Offline - Using cached session token and profile info");
+					return loginParams;
+				})
+				.orElseGet(() -> {
+					LOG.warn("Offline and no usable cached session present - Skipping login");
+					return Map.of();
+				});
+		}
+		
+		if(this.config.http().preWarm())
+		{
+			LOG.debug("Pre-warming connections for {}", requiredEndpoints);
+			HttpClientUtil.preWarm(requiredEndpoints);
+		}
+		
+		// Only one process at a time refreshes the tokens of an account, the others wait and then use the result
+		try(final NamedFileLock ignored = NamedFileLock.acquire(this.lockDir, account))
+		{
+			// The tokens might have been refreshed by another process in the meantime
+			this.readAccount(account);
+			return this.login(account, options);
+		}
+	}
+	
+	/**
+	 * @return the expiry of the cached session token of the account (in server time)
+	 */
+	public Optional<Instant> sessionExpiry(final String account)
+	{
+		this.readAccount(account);
+		return Optional.ofNullable(this.cachedSessionToken(account)).map(Token::getExpiry);
+	}
+	
+	/**
+	 * @return all accounts that have cached tokens
+	 */
+	public Set<String> cachedAccounts()
+	{
+		this.readAllAccounts();
+		return Set.copyOf(this.accountTokens.keySet());
+	}
+	
+	/**
+	 * @return the expiry of the cached session token (in server time) for all accounts that have one
+	 */
+	public Map<String, Instant> sessionExpiries()
+	{
+		this.readAllAccounts();
+		
+		final Map<String, Instant> sessionExpiries = new HashMap<>();
+		this.accountTokens.forEach((account, tokens) -> {
+			final Token sessionToken = tokens != null ? tokens.get(TokenKey.SESSION_TOKEN) : null;
+			if(sessionToken != null)
+			{
+				sessionExpiries.put(account, sessionToken.getExpiry());
+			}
+		});
+		return sessionExpiries;
+	}
+	
+	private MicrosoftTokenManager createTokenManager(final String account, final LoginOptions options)
+	{
+		return new MicrosoftTokenManager(
 			this.oAuthGrantFlow,
 			this.config.forceHandleAllTokensAsExpired(),
+			options,
 			this.accountTokens.get(account));
+	}
+	
+	private Token cachedSessionToken(final String account)
+	{
+		return Optional.ofNullable(this.accountTokens.get(account))
+			.map(tokens -> tokens.get(TokenKey.SESSION_TOKEN))
+			.orElse(null);
+	}
+	
+	private Map<String, String> login(final String account, final LoginOptions options)
+	{
+		final MicrosoftTokenManager loginExecutor = this.createTokenManager(account, options);
+		
+		// Snapshot as the token manager updates the tokens in place
+		final Token cachedSessionToken = this.cachedSessionToken(account);
+		final ProfileInfo cachedProfileInfo = this.accountProfileInfos.get(account);
+		
+		final long deadlineAtMs = this.config.loginDeadline().isZero()
+			? Long.MAX_VALUE
+			: System.currentTimeMillis() + this.config.loginDeadline().toMillis();
+		
+		// The optional additional tokens are only renewed together with the session, so that they never cause a fetch
+		final boolean sessionRequiresFetch = !loginExecutor.predictRequiredEndpoints().isEmpty();
+		
 		LOG.debug("Getting session token");
-		final String sessionToken = loginExecutor.getSessionToken();
+		final Optional<String> optSessionToken;
+		try
+		{
+			optSessionToken = this.getSessionTokenWithinDeadline(account, loginExecutor, deadlineAtMs);
+		}
+		catch(final RuntimeException ex)
+		{
+			// e.g. network problems or an endpoint that is known to be down
+			if(FailureType.classify(ex) != FailureType.TRANSIENT)
+			{
+				throw ex;
+			}
+			this.saveUpdatedTokens(account, loginExecutor);
+			return this.fallbackToCachedSession(
+				"Failed to get session token due to a transient problem (" + ex.getMessage() + ")",
+				ex,
+				cachedSessionToken,
+				cachedProfileInfo);
+		}
+		if(optSessionToken.isEmpty())
+		{
+			return this.fallbackToCachedSession(
+				"Login deadline of " + this.config.loginDeadline().toSeconds() + "s exceeded (Hops: "
+					+ loginExecutor.hopTracker().report() + ")",
+				null,
+				cachedSessionToken,
+				cachedProfileInfo);
+		}
+		final String sessionToken = optSessionToken.get();
 		
-		final AtomicBoolean markSaveRequired = new AtomicBoolean(false);
-		loginExecutor.requiresTokenUpdate().ifPresent(t -> {
-			LOG.debug("Updated tokens");
-			this.accountTokens.put(account, t);
-			markSaveRequired.set(true);
-			this.saveAsync();
-		});
+		// Fetched concurrently with the profile info - shared tokens (e.g. XBL) are reused from the session token
+		final Map<TokenKey<?>, CompletableFuture<Token>> cfAdditionalTokens = sessionRequiresFetch
+			? loginExecutor.getOptionalTokensAsync(this.additionalXstsTokenKeys)
+			: Map.of();
 		
 		LOG.debug("Getting account profile info");
-		final ProfileInfo accountProfileInfo = this.getAccountProfileInfo(account, sessionToken, markSaveRequired);
-		if(markSaveRequired.get())
+		final boolean revalidateProfileInfo = this.isProfileInfoOutdated(cachedProfileInfo)
+			&& this.isProfileInfoUsableWhileRevalidating(cachedProfileInfo);
+		// Asynchronous so that waiting for it can be bounded by the login deadline
+		CompletableFuture<ProfileInfo> cfFetchedProfileInfo = this.requiresBlockingProfileInfoFetch(cachedProfileInfo)
+			? this.fetchProfileInfoAsync(sessionToken)
+			: CompletableFuture.completedFuture(null);
+		if(deadlineAtMs != Long.MAX_VALUE)
+		{
+			cfFetchedProfileInfo = cfFetchedProfileInfo.completeOnTimeout(
+				null,
+				Math.max(0, deadlineAtMs + loginExecutor.hopTracker().interactiveMs() - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS);
+		}
+		
+		this.awaitAdditionalTokens(cfAdditionalTokens, loginExecutor, deadlineAtMs);
+		
+		final Tokens updatedTokens = loginExecutor.requiresTokenUpdate().orElse(null);
+		if(updatedTokens != null)
+		{
+			LOG.debug("Updated tokens");
+			this.accountTokens.put(account, updatedTokens);
+		}
+		
+		final ProfileInfo fetchedProfileInfo = cfFetchedProfileInfo.join();
+		if(fetchedProfileInfo != null)
+		{
+			this.accountProfileInfos.put(account, fetchedProfileInfo);
+		}
+		final ProfileInfo accountProfileInfo = Objects.requireNonNull(
+			fetchedProfileInfo != null ? fetchedProfileInfo : cachedProfileInfo,
+			"No profile info present");
+		
+		if(updatedTokens != null || fetchedProfileInfo != null)
+		{
+			// Save synchronously so that it's completed before other processes are allowed to read it
+			this.stateWriter.update(account, updatedTokens, fetchedProfileInfo);
+			this.stateWriter.flush();
+		}
+		
+		if(revalidateProfileInfo)
+		{
+			this.revalidateProfileInfoAsync(account, sessionToken);
+		}
+		
+		final Map<String, Long> skippedCalls = HttpClientUtil.circuitBreakerSkippedCalls();
+		if(!skippedCalls.isEmpty())
+		{
+			LOG.debug("Calls skipped due to open circuits: {}", skippedCalls);
+		}
+		final Map<String, Long> rateLimitWaitedMs = HttpClientUtil.rateLimitWaitedMs();
+		if(!rateLimitWaitedMs.isEmpty())
 		{
-			this.saveAsync();
+			LOG.info("Waited due to rate limits (ms per host): {}", rateLimitWaitedMs);
 		}
 		
 		LOG.debug("Returning login params");
@@ -107,116 +333,387 @@ public class MicrosoftAuthProvider implements AuthProvider
 			USERNAME, accountProfileInfo.name());
 	}
 	
-	@SuppressWarnings("checkstyle:MagicNumber")
-	private ProfileInfo getAccountProfileInfo(
+	/**
+	 * Executes the token chain and waits for it until the deadline is reached.
+	 * <p>
+	 * Time spent waiting for interactive logins (e.g. the user entering credentials) is not counted towards the
+	 * deadline.
+	 * </p>
+	 *
+	 * @return the session token or empty if the deadline was reached (the tokens that were updated until then are
+	 * saved)
+	 */
+	private Optional<String> getSessionTokenWithinDeadline(
 		final String account,
-		final String sessionToken,
-		final AtomicBoolean markSaveRequired)
+		final MicrosoftTokenManager loginExecutor,
+		final long deadlineAtMs)
 	{
-		ProfileInfo profileInfo = this.accountProfileInfos.get(account);
+		if(deadlineAtMs == Long.MAX_VALUE)
+		{
+			return Optional.of(loginExecutor.getSessionToken());
+		}
+		
+		final CompletableFuture<String> cfSessionToken = new CompletableFuture<>();
+		final Thread thread = Thread.ofVirtual()
+			.name("DevAuthNeo-Login")
+			// Otherwise an Error would be reported as reaching the deadline
+			.uncaughtExceptionHandler((t, err) -> cfSessionToken.completeExceptionally(err))
+			.start(() -> {
+				try
+				{
+					cfSessionToken.complete(loginExecutor.getSessionToken());
+				}
+				catch(final Exception ex)
+				{
+					cfSessionToken.completeExceptionally(ex);
+				}
+			});
 		
-		if(profileInfo == null
-			|| profileInfo.fetchedAt().plus(this.config.cacheProfileInfoDuration()).isBefore(Instant.now()))
+		final LoginHopTracker hopTracker = loginExecutor.hopTracker();
+		while(true)
 		{
-			try(final HttpClient httpClient = HttpClientUtil.newHttpClientBuilder().build())
+			final long remainingMs = deadlineAtMs + hopTracker.interactiveMs() - System.currentTimeMillis();
+			if(remainingMs <= 0 && !hopTracker.isInteractionInProgress())
 			{
-				final HttpResponse<String> response = httpClient.send(
-					HttpClientUtil.newHttpClientRequest(MINECRAFT_PROFILE_URI)
-						.setHeader("Authorization", "Bearer " + sessionToken)
-						.GET()
-						.build(),
-					HttpResponse.BodyHandlers.ofString());
-				
-				if(response.statusCode() == 404)
+				thread.interrupt();
+				this.saveUpdatedTokensOnceCompleted(account, loginExecutor, cfSessionToken);
+				return Optional.empty();
+			}
+			
+			try
+			{
+				return Optional.of(cfSessionToken.get(
+					Math.clamp(remainingMs, 1, DEADLINE_POLL_INTERVAL_MS),
+					TimeUnit.MILLISECONDS));
+			}
+			catch(final TimeoutException ignored)
+			{
+				// Check deadline again
+			}
+			catch(final ExecutionException ex)
+			{
+				if(ex.getCause() instanceof final RuntimeException rex)
 				{
-					throw new RuntimeException("404 received for minecraft profile, does the user own the game?");
+					throw rex;
 				}
-				
-				final JsonObject profileObject = JsonParser.parseString(
-						HttpClientUtil.checkStatus(response).body())
-					.getAsJsonObject();
-				
-				profileInfo = new ProfileInfo(
-					profileObject.get("id").getAsString(),
-					profileObject.get("name").getAsString(),
-					Instant.now());
-				this.accountProfileInfos.put(account, profileInfo);
-				markSaveRequired.set(true);
-				
-				LOG.debug("Fetched ProfileInfo: {}", profileInfo);
+				if(ex.getCause() instanceof final Error err)
+				{
+					throw err;
+				}
+				throw new IllegalStateException("Failed to get session token", ex.getCause());
 			}
-			catch(final Exception e)
+			catch(final InterruptedException ex)
 			{
-				LOG.warn("Failed to fetch minecraft profile - Trying to use cache", e);
+				thread.interrupt();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for session token", ex);
 			}
 		}
-		return Objects.requireNonNull(profileInfo, "No profile info present");
 	}
 	
-	private void readFile()
+	/**
+	 * Waits (at most until the deadline or the request timeout) for the additional tokens. Failures are only logged
+	 * as the additional tokens are not required for logging in.
+	 */
+	private void awaitAdditionalTokens(
+		final Map<TokenKey<?>, CompletableFuture<Token>> cfAdditionalTokens,
+		final MicrosoftTokenManager loginExecutor,
+		final long deadlineAtMs)
+	{
+		final long timeoutAtMs = System.currentTimeMillis() + this.config.http().timeout().request().toMillis();
+		final long waitUntilMs = deadlineAtMs != Long.MAX_VALUE
+			? Math.min(deadlineAtMs + loginExecutor.hopTracker().interactiveMs(), timeoutAtMs)
+			: timeoutAtMs;
+		cfAdditionalTokens.forEach((key, cfToken) -> {
+			try
+			{
+				final Token token = cfToken.completeOnTimeout(
+					null,
+					Math.max(0, waitUntilMs - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS).join();
+				if(token == null)
+				{
+					LOG.warn("Timed out while getting token {} - Skipping it", key);
+				}
+			}
+			catch(final CompletionException ex)
+			{
+				LOG.warn("Failed to get token {}", key, ex.getCause());
+			}
+		});
+	}
+	
+	/**
+	 * Saves the tokens that the aborted login updated (e.g. a refreshed OAuth token) once it's completed.
+	 * <p>
+	 * The login might not react to the interruption immediately (e.g. while a request is running) and would
+	 * otherwise still update the tokens while they are saved. It's therefore only waited for shortly, afterwards the
+	 * tokens are saved in the background once it's completed.
+	 * </p>
+	 */
+	private void saveUpdatedTokensOnceCompleted(
+		final String account,
+		final MicrosoftTokenManager loginExecutor,
+		final CompletableFuture<?> cfLogin)
 	{
-		if(!Files.exists(this.file))
+		try
+		{
+			cfLogin.get(ABORTED_LOGIN_WAIT_MS, TimeUnit.MILLISECONDS);
+		}
+		catch(final ExecutionException ignored)
 		{
+			// Completed - the tokens that were updated until the failure are saved
+		}
+		catch(final TimeoutException | InterruptedException ex)
+		{
+			if(ex instanceof InterruptedException)
+			{
+				Thread.currentThread().interrupt();
+			}
+			LOG.debug("Aborted login is still running - Saving its tokens once it's completed");
+			HttpClientUtil.registerBackgroundTask(cfLogin
+				.handleAsync(
+					(ignored, ignoredEx) -> {
+						this.saveUpdatedTokens(account, loginExecutor);
+						return null;
+					},
+					HttpClientUtil.VIRTUAL_THREAD_EXECUTOR)
+				.exceptionally(saveEx -> {
+					LOG.warn("Failed to save tokens of aborted login", saveEx);
+					return null;
+				}));
 			return;
 		}
+		this.saveUpdatedTokens(account, loginExecutor);
+	}
+	
+	/**
+	 * Saves the tokens that were updated by the (completed) login although it failed or was aborted.
+	 */
+	private void saveUpdatedTokens(final String account, final MicrosoftTokenManager loginExecutor)
+	{
+		// Same lock as used by callers that share the provider (e.g. the broker)
+		synchronized(this)
+		{
+			loginExecutor.requiresTokenUpdate().ifPresent(updatedTokens -> {
+				LOG.debug("Saving tokens that were updated before the login was aborted");
+				this.accountTokens.put(account, updatedTokens);
+				this.stateWriter.update(account, updatedTokens, null);
+				this.stateWriter.flush();
+			});
+		}
+	}
+	
+	/**
+	 * Uses the cached session when the token chain could not be completed.
+	 * <p>
+	 * As the chain only needs the network once the cached session is (about to be) expired, this only applies when
+	 * the session is renewed ahead of its expiry ({@link LoginOptions#refreshAhead()}), when all tokens are handled
+	 * as expired or when only the profile info is fetched.
+	 * </p>
+	 */
+	private Map<String, String> fallbackToCachedSession(
+		final String reason,
+		final RuntimeException cause,
+		final Token cachedSessionToken,
+		final ProfileInfo cachedProfileInfo)
+	{
+		final Map<String, String> loginParams = this.cachedLoginParams(cachedSessionToken, cachedProfileInfo)
+			.orElseThrow(() -> new IllegalStateException(reason + " - No usable cached session present", cause));
 		
+		LOG.warn("{} - Using cached session token and profile info", reason);
+		return loginParams;
+	}
+	
+	private Optional<Map<String, String>> cachedLoginParams(
+		final Token cachedSessionToken,
+		final ProfileInfo cachedProfileInfo)
+	{
+		if(cachedSessionToken == null || cachedSessionToken.isExpired() || cachedProfileInfo == null)
+		{
+			return Optional.empty();
+		}
+		return Optional.of(Map.of(
+			ACCESS_TOKEN, cachedSessionToken.getToken(),
+			UUID, cachedProfileInfo.uuid(),
+			USERNAME, cachedProfileInfo.name()));
+	}
+	
+	/**
+	 * Determines which endpoints will be called (based on the cached tokens and profile info).
+	 */
+	private Set<URI> requiredEndpoints(
+		final MicrosoftTokenManager loginExecutor,
+		final ProfileInfo cachedProfileInfo)
+	{
+		final Set<URI> endpoints = new HashSet<>(loginExecutor.predictRequiredEndpoints());
+		// Only fetched together with the session (see login)
+		if(!endpoints.isEmpty())
+		{
+			endpoints.addAll(loginExecutor.predictRequiredEndpoints(this.additionalXstsTokenKeys));
+		}
+		if(this.requiresBlockingProfileInfoFetch(cachedProfileInfo))
+		{
+			endpoints.add(MINECRAFT_PROFILE_URI);
+		}
+		return endpoints;
+	}
+	
+	private boolean isProfileInfoOutdated(final ProfileInfo profileInfo)
+	{
+		return profileInfo == null
+			|| profileInfo.fetchedAt().plus(this.config.cacheProfileInfoDuration()).isBefore(Instant.now());
+	}
+	
+	/**
+	 * Stale-while-revalidate: An outdated profile info can still be used (while a new one is fetched in the
+	 * background) until the max staleness is reached.
+	 */
+	private boolean isProfileInfoUsableWhileRevalidating(final ProfileInfo profileInfo)
+	{
+		return !this.config.profileInfoMaxStaleness().isZero()
+			&& profileInfo != null
+			&& profileInfo.fetchedAt().plus(this.config.profileInfoMaxStaleness()).isAfter(Instant.now());
+	}
+	
+	private boolean requiresBlockingProfileInfoFetch(final ProfileInfo profileInfo)
+	{
+		return this.isProfileInfoOutdated(profileInfo) && !this.isProfileInfoUsableWhileRevalidating(profileInfo);
+	}
+	
+	private void revalidateProfileInfoAsync(final String account, final String sessionToken)
+	{
+		LOG.debug("Using outdated profile info - Fetching new one in background");
+		HttpClientUtil.registerBackgroundTask(this.fetchProfileInfoAsync(sessionToken)
+			.thenAcceptAsync(
+				profileInfo -> {
+					if(profileInfo == null)
+					{
+						return;
+					}
+					// Same lock as used by callers that share the provider (e.g. the broker)
+					synchronized(this)
+					{
+						this.accountProfileInfos.put(account, profileInfo);
+						this.stateWriter.update(account, null, profileInfo);
+						this.stateWriter.flushDebounced();
+					}
+				},
+				HttpClientUtil.VIRTUAL_THREAD_EXECUTOR)
+			.exceptionally(ex -> {
+				LOG.warn("Failed to save revalidated profile info", ex);
+				return null;
+			}));
+	}
+	
+	@SuppressWarnings("checkstyle:MagicNumber")
+	private CompletableFuture<ProfileInfo> fetchProfileInfoAsync(final String sessionToken)
+	{
+		return HttpClientUtil.jsonGetAsync(
+				MINECRAFT_PROFILE_URI,
+				Map.of("Authorization", "Bearer " + sessionToken),
+				ProfileInfo::fromJson)
+			.thenApply(response -> {
+				if(response.statusCode() == 404)
+				{
+					throw new RuntimeException("404 received for minecraft profile, does the user own the game?");
+				}
+				
+				final ProfileInfo profileInfo = response.body().get();
+				
+				LOG.debug("Fetched ProfileInfo: {}", profileInfo);
+				return profileInfo;
+			})
+			.exceptionally(ex -> {
+				LOG.warn("Failed to fetch minecraft profile - Trying to use cache", ex);
+				return null;
+			});
+	}
+	
+	private void readAccount(final String account)
+	{
 		final long startMs = System.currentTimeMillis();
 		try
 		{
-			final PersistentState persistentState =
-				JSONSerializer.GSON.fromJson(Files.readString(this.file), PersistentState.class);
-			
-			this.accountTokens = requireNonNullElseGet(persistentState.accountTokens(), HashMap::new);
-			this.accountProfileInfos = requireNonNullElseGet(persistentState.accountProfileInfos(), HashMap::new);
+			final Optional<AccountStateStore.AccountState> optAccountState = this.store.read(account);
+			this.cache(account, optAccountState.orElse(null));
 			
-			LOG.debug(
-				"Took {}ms to read {}x accountTokens",
-				System.currentTimeMillis() - startMs,
-				this.accountTokens.size());
+			LOG.debug("Took {}ms to read account", System.currentTimeMillis() - startMs);
 		}
 		catch(final Exception ex)
 		{
-			LOG.warn("Failed to read file['{}']", this.file, ex);
+			LOG.warn("Failed to read state of account", ex);
 		}
 	}
 	
-	private void saveAsync()
-	{
-		CompletableFuture.runAsync(this::saveToFile);
-	}
-	
-	private synchronized void saveToFile()
+	private void readAllAccounts()
 	{
 		final long startMs = System.currentTimeMillis();
 		try
 		{
-			Files.writeString(
-				this.file, JSONSerializer.GSON.toJson(new PersistentState(
-					this.accountTokens,
-					this.accountProfileInfos)));
+			final Map<String, AccountStateStore.AccountState> accountStates = this.store.readAll();
+			this.accountTokens.clear();
+			this.accountProfileInfos.clear();
+			accountStates.forEach(this::cache);
+			
 			LOG.debug(
-				"Took {}ms to write {}x accountTokens",
+				"Took {}ms to read {}x accounts",
 				System.currentTimeMillis() - startMs,
-				this.accountTokens.size());
+				accountStates.size());
 		}
 		catch(final Exception ex)
 		{
-			LOG.warn("Failed to write file['{}']", this.file, ex);
+			LOG.warn("Failed to read state of accounts", ex);
 		}
 	}
 	
-	record PersistentState(
-		Map<String, Tokens> accountTokens,
-		Map<String, ProfileInfo> accountProfileInfos
-	)
+	private void cache(final String account, final AccountStateStore.AccountState accountState)
 	{
+		if(accountState != null && accountState.tokens() != null)
+		{
+			this.accountTokens.put(account, accountState.tokens());
+		}
+		else
+		{
+			this.accountTokens.remove(account);
+		}
+		
+		if(accountState != null && accountState.profileInfo() != null)
+		{
+			this.accountProfileInfos.put(account, accountState.profileInfo());
+		}
+		else
+		{
+			this.accountProfileInfos.remove(account);
+		}
 	}
 	
-	
 	record ProfileInfo(
 		String uuid,
 		String name,
 		Instant fetchedAt)
 	{
+		static ProfileInfo fromJson(final JsonReader reader) throws IOException
+		{
+			String uuid = null;
+			String name = null;
+			
+			reader.beginObject();
+			while(reader.hasNext())
+			{
+				switch(reader.nextName())
+				{
+					case "id" -> uuid = reader.nextString();
+					case "name" -> name = reader.nextString();
+					default -> reader.skipValue();
+				}
+			}
+			reader.endObject();
+			
+			return new ProfileInfo(
+				Objects.requireNonNull(uuid, "Response is missing field 'id'"),
+				Objects.requireNonNull(name, "Response is missing field 'name'"),
+				Instant.now());
+		}
 	}
 }
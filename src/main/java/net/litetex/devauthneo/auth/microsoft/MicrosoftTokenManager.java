@@ -2,27 +2,45 @@ package net.litetex.devauthneo.auth.microsoft;
 
 import java.net.URI;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.BiConsumer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
-import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
-
 import net.litetex.devauthneo.auth.microsoft.oauth.OAuthGrantFlow;
 import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
 import net.litetex.devauthneo.auth.microsoft.token.Token;
+import net.litetex.devauthneo.auth.microsoft.token.TokenKey;
 import net.litetex.devauthneo.auth.microsoft.token.XBLToken;
+import net.litetex.devauthneo.auth.shared.FailureType;
 import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.auth.shared.ServerClock;
+import net.litetex.devauthneo.shared.json.JsonTemplate;
 
 
+/**
+ * Resolves tokens using a dependency graph of {@link TokenHop hops}:
+ * <pre>
+ * oauth -> xbl -> xsts (Minecraft) -> session
+ *              -> xsts@&lt;relying party&gt; (e.g. Realms)
+ * </pre>
+ * <p>
+ * Each token is resolved at most once per instance, so that concurrently requested tokens that share a dependency
+ * (e.g. the XBL token) don't fetch it multiple times.
+ * </p>
+ */
 class MicrosoftTokenManager
 {
 	private static final Logger LOG = LoggerFactory.getLogger(MicrosoftTokenManager.class);
@@ -32,152 +50,297 @@ class MicrosoftTokenManager
 	private static final URI MINECRAFT_URI =
 		URI.create("https://api.minecraftservices.com/authentication/login_with_xbox");
 	
+	// Request bodies are pre-serialized as only the token/user hash changes
+	// noinspection HttpUrlsUsage
+	private static final JsonTemplate XBL_BODY = JsonTemplate.of("""
+		{"Properties":{"AuthMethod":"RPS","SiteName":"user.auth.xboxlive.com","RpsTicket":"d=%s"},\
+		"RelyingParty":"http://auth.xboxlive.com","TokenType":"JWT"}""");
+	private static final JsonTemplate XSTS_BODY = JsonTemplate.of("""
+		{"Properties":{"SandboxId":"RETAIL","UserTokens":["%s"]},\
+		"RelyingParty":"%s","TokenType":"JWT"}""");
+	private static final JsonTemplate MINECRAFT_BODY = JsonTemplate.of("""
+		{"identityToken":"XBL3.0 x=%s;%s"}""");
+	
+	// Bound while resolving optional tokens - these must never start an interactive login
+	private static final ScopedValue<Boolean> OPTIONAL_TOKEN = ScopedValue.newInstance();
+	
 	private final OAuthGrantFlow oAuthGrantFlow;
 	private final boolean forceHandleAllTokensAsExpired;
+	private final LoginOptions options;
 	private final Tokens tokens;
+	private final LoginHopTracker hopTracker = new LoginHopTracker();
 	
-	private boolean updatedTokens;
+	private final Map<TokenKey<?>, TokenHop<?, ?>> hops = new ConcurrentHashMap<>();
+	private final Map<TokenKey<?>, CompletableFuture<Token>> resolvedTokens = new ConcurrentHashMap<>();
+	
+	private volatile boolean updatedTokens;
 	
 	MicrosoftTokenManager(
 		final OAuthGrantFlow oAuthGrantFlow,
 		final boolean forceHandleAllTokensAsExpired,
+		final LoginOptions options,
 		final Tokens tokens)
 	{
 		this.oAuthGrantFlow = oAuthGrantFlow;
 		this.forceHandleAllTokensAsExpired = forceHandleAllTokensAsExpired;
+		this.options = options;
 		this.tokens = Objects.requireNonNullElseGet(tokens, Tokens::new);
 		
+		this.register(new TokenHop<>(
+			TokenKey.OAUTH_TOKEN,
+			this.oAuthGrantFlow.refreshTokenUri(),
+			null,
+			ignored -> this.hopTracker.track("oAuth (interactive)", true, this::fetchOAuthTokenInteractively),
+			t -> this.hopTracker.track("oAuth refresh", false, () -> this.oAuthGrantFlow.refreshToken(t))));
+		this.register(new TokenHop<>(
+			TokenKey.XBL_TOKEN,
+			XBL_URI,
+			TokenKey.OAUTH_TOKEN,
+			this::fetchXBLToken,
+			null));
+		this.register(this.xstsHop(TokenKey.XSTS_TOKEN));
+		this.register(new TokenHop<>(
+			TokenKey.SESSION_TOKEN,
+			MINECRAFT_URI,
+			TokenKey.XSTS_TOKEN,
+			this::fetchMcSession,
+			null));
+		
 		LOG.debug("Initialized with {}", this.oAuthGrantFlow.getClass().getSimpleName());
 	}
 	
+	private void register(final TokenHop<?, ?> hop)
+	{
+		this.hops.put(hop.key(), hop);
+	}
+	
+	private TokenHop<XBLToken, XBLToken> xstsHop(final TokenKey<XBLToken> key)
+	{
+		return new TokenHop<>(
+			key,
+			XSTS_URI,
+			TokenKey.XBL_TOKEN,
+			xblToken -> this.fetchXSTSToken(key, xblToken),
+			null);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T extends Token> TokenHop<?, T> hop(final TokenKey<T> key)
+	{
+		return (TokenHop<?, T>)this.hops.computeIfAbsent(key, k -> {
+			// Only XSTS tokens are qualified (by their relying party)
+			if(k.getQualifier() != null)
+			{
+				return this.xstsHop((TokenKey<XBLToken>)k);
+			}
+			throw new IllegalArgumentException("No hop registered for token " + k);
+		});
+	}
+	
 	String getSessionToken()
 	{
-		return this.getToken("session", Tokens::getSession, Tokens::setSession, this::fetchMcSession).getToken();
+		return this.getToken(TokenKey.SESSION_TOKEN).getToken();
 	}
 	
-	private Token fetchMcSession()
+	/**
+	 * Resolves the given optional tokens concurrently (dependencies that are shared are only resolved once).
+	 * <p>
+	 * No interactive login is executed for them - if one would be required an
+	 * {@link InteractiveLoginRequiredException} is thrown instead.<br/>
+	 * Should only be called once the session token was resolved, as otherwise the session token could fail due to
+	 * sharing an (OAuth) token with an optional one.
+	 * </p>
+	 */
+	Map<TokenKey<?>, CompletableFuture<Token>> getOptionalTokensAsync(final Collection<? extends TokenKey<?>> keys)
 	{
-		final XBLToken xstsToken =
-			this.getToken("xsts", Tokens::getXsts, Tokens::setXsts, this::fetchXSTSToken);
-		
-		final JsonObject object = new JsonObject();
-		object.addProperty("identityToken", "XBL3.0 x=" + xstsToken.getUserHash() + ";" + xstsToken.getToken());
-		
-		final JsonObject res = HttpClientUtil.jsonPost(MINECRAFT_URI, object);
-		
-		return Token.fromJson(res);
+		final Map<TokenKey<?>, CompletableFuture<Token>> futures = new LinkedHashMap<>();
+		for(final TokenKey<?> key : keys)
+		{
+			futures.put(key, CompletableFuture.supplyAsync(
+				() -> ScopedValue.where(OPTIONAL_TOKEN, true).call(() -> this.getToken(key)),
+				HttpClientUtil.VIRTUAL_THREAD_EXECUTOR));
+		}
+		return futures;
 	}
 	
-	private XBLToken fetchXSTSToken()
+	/**
+	 * Determines which endpoints need to be called to get a valid session token (based on the current tokens).
+	 */
+	Set<URI> predictRequiredEndpoints()
 	{
-		final XBLToken xblToken = this.getToken("xbl", Tokens::getXbl, Tokens::setXbl, this::fetchXBLToken);
-		
-		final JsonObject object = new JsonObject();
-		
-		final JsonObject properties = new JsonObject();
-		properties.addProperty("SandboxId", "RETAIL");
-		
-		final JsonArray userTokens = new JsonArray();
-		userTokens.add(new JsonPrimitive(xblToken.getToken()));
-		properties.add("UserTokens", userTokens);
-		
-		object.add("Properties", properties);
-		
-		object.addProperty("RelyingParty", "rp://api.minecraftservices.com/");
-		object.addProperty("TokenType", "JWT");
-		
-		final JsonObject res = HttpClientUtil.jsonPost(XSTS_URI, object);
-		
-		return XBLToken.fromJson(res, true);
+		return this.predictRequiredEndpoints(List.of(TokenKey.SESSION_TOKEN));
 	}
 	
-	private XBLToken fetchXBLToken()
+	/**
+	 * Determines which endpoints need to be called to get the given tokens (based on the current tokens).
+	 */
+	Set<URI> predictRequiredEndpoints(final Collection<? extends TokenKey<?>> keys)
 	{
-		final OAuthToken oAuthToken = this.getToken(
-			"oAuth",
-			Tokens::getOauth,
-			Tokens::setOauth,
-			this.oAuthGrantFlow::getToken,
-			this.oAuthGrantFlow::refreshToken);
-		
-		final JsonObject object = new JsonObject();
-		
-		final JsonObject properties = new JsonObject();
-		object.add("Properties", properties);
-		properties.addProperty("AuthMethod", "RPS");
-		properties.addProperty("SiteName", "user.auth.xboxlive.com");
-		properties.addProperty("RpsTicket", "d=" + oAuthToken.getToken());
-		
-		// noinspection HttpUrlsUsage
-		object.addProperty("RelyingParty", "http://auth.xboxlive.com");
-		object.addProperty("TokenType", "JWT");
-		
-		final JsonObject res = HttpClientUtil.jsonPost(XBL_URI, object);
-		
-		return XBLToken.fromJson(res, true);
+		final Set<URI> endpoints = new LinkedHashSet<>();
+		for(final TokenKey<?> key : keys)
+		{
+			TokenKey<?> current = key;
+			while(current != null && this.requiresFetch(this.tokens.get(current)))
+			{
+				final TokenHop<?, ?> hop = this.hop(current);
+				endpoints.add(hop.uri());
+				current = hop.dependency();
+			}
+		}
+		return endpoints;
 	}
 	
-	private <T extends Token> T getToken(
-		final String name,
-		final Function<Tokens, T> getter,
-		final BiConsumer<Tokens, T> setter,
-		final Supplier<T> fetchFunc)
+	private boolean requiresFetch(final Token token)
 	{
-		return this.getToken(name, getter, setter, fetchFunc, null);
+		return token == null
+			|| token.isExpiredWithin(this.options.refreshAhead())
+			|| this.forceHandleAllTokensAsExpired;
 	}
 	
-	private <T extends Token> T getToken(
-		final String name,
-		final Function<Tokens, T> getter,
-		final BiConsumer<Tokens, T> setter,
-		final Supplier<T> fetchFunc,
-		final Function<T, T> refreshFunc)
+	private Token fetchMcSession(final XBLToken xstsToken)
 	{
-		final T existingToken = getter.apply(this.tokens);
+		return this.hopTracker.track("session", false, () -> HttpClientUtil.jsonPost(
+			MINECRAFT_URI,
+			MINECRAFT_BODY.render(xstsToken.getUserHash(), xstsToken.getToken()),
+			Token::fromJson));
+	}
+	
+	private XBLToken fetchXSTSToken(final TokenKey<XBLToken> key, final XBLToken xblToken)
+	{
+		return this.hopTracker.track(key.getName(), false, () -> HttpClientUtil.jsonPost(
+			XSTS_URI,
+			XSTS_BODY.render(xblToken.getToken(), key.getQualifier()),
+			reader -> XBLToken.fromJson(reader, true)));
+	}
+	
+	private XBLToken fetchXBLToken(final OAuthToken oAuthToken)
+	{
+		return this.hopTracker.track("xbl", false, () -> HttpClientUtil.jsonPost(
+			XBL_URI,
+			XBL_BODY.render(oAuthToken.getToken()),
+			reader -> XBLToken.fromJson(reader, true)));
+	}
+	
+	private OAuthToken fetchOAuthTokenInteractively()
+	{
+		if(!this.options.interactiveAllowed() || OPTIONAL_TOKEN.isBound())
+		{
+			throw new InteractiveLoginRequiredException();
+		}
+		return this.oAuthGrantFlow.getToken();
+	}
+	
+	/**
+	 * Resolves the token - if it's already being resolved by another thread the result of that is used.
+	 */
+	private <T extends Token> T getToken(final TokenKey<T> key)
+	{
+		final CompletableFuture<Token> cfToken = new CompletableFuture<>();
+		final CompletableFuture<Token> cfExistingToken = this.resolvedTokens.putIfAbsent(key, cfToken);
+		if(cfExistingToken == null)
+		{
+			try
+			{
+				final T token = this.resolveNow(this.hop(key));
+				cfToken.complete(token);
+				return token;
+			}
+			catch(final RuntimeException ex)
+			{
+				cfToken.completeExceptionally(ex);
+				throw ex;
+			}
+		}
+		
+		try
+		{
+			return key.getClazz().cast(cfExistingToken.join());
+		}
+		catch(final CompletionException ex)
+		{
+			if(ex.getCause() instanceof final RuntimeException rex)
+			{
+				throw rex;
+			}
+			throw ex;
+		}
+	}
+	
+	private <D extends Token, T extends Token> T resolveNow(final TokenHop<D, T> hop)
+	{
+		final TokenKey<T> key = hop.key();
+		final T existingToken = this.tokens.get(key);
 		if(existingToken != null)
 		{
-			if(!existingToken.isExpired() && !this.forceHandleAllTokensAsExpired)
+			if(!this.requiresFetch(existingToken))
 			{
 				return existingToken;
 			}
 			
-			if(refreshFunc != null)
+			if(hop.refresher() != null)
 			{
 				try
 				{
-					return this.setTokenAfterFetch(name, setter, refreshFunc.apply(existingToken));
+					return this.setTokenAfterFetch(key, hop.refresher().apply(existingToken));
 				}
-				catch(final Exception ex)
+				catch(final RuntimeException ex)
 				{
-					LOG.warn("Failed to refresh token - fetching a new one", ex);
+					final FailureType failureType = FailureType.classify(ex);
+					if(failureType == FailureType.TRANSIENT)
+					{
+						// Fetching a new token (e.g. an interactive login) won't help and might block for a long time
+						LOG.warn("Failed to refresh token {} ({})", key, failureType);
+						throw ex;
+					}
+					LOG.warn("Token {} can no longer be refreshed ({}) - fetching a new one", key, failureType, ex);
 				}
 			}
 		}
 		
-		return this.setTokenAfterFetch(name, setter, fetchFunc.get());
+		final D dependency = hop.dependency() != null ? this.getToken(hop.dependency()) : null;
+		return this.setTokenAfterFetch(key, hop.fetcher().apply(dependency));
 	}
 	
-	private <T extends Token> T setTokenAfterFetch(
-		final String name,
-		final BiConsumer<Tokens, T> setter,
-		final T token)
+	private <T extends Token> T setTokenAfterFetch(final TokenKey<T> key, final T token)
 	{
 		if(LOG.isInfoEnabled())
 		{
 			LOG.info(
 				"Updated token {} (Expiry: {} or in {})",
-				name,
+				key,
 				token.getExpiry(),
-				Duration.between(Instant.now(), token.getExpiry()));
+				Duration.between(ServerClock.now(), token.getExpiry()));
 		}
 		
 		this.updatedTokens = true;
-		setter.accept(this.tokens, token);
+		this.tokens.set(key, token);
 		return token;
 	}
 	
+	LoginHopTracker hopTracker()
+	{
+		return this.hopTracker;
+	}
+	
 	Optional<Tokens> requiresTokenUpdate()
 	{
 		return this.updatedTokens ? Optional.of(this.tokens) : Optional.empty();
 	}
+	
+	/**
+	 * A hop of the token chain that produces a token from the token it depends on.
+	 *
+	 * @param uri        the endpoint that is called when the token needs to be fetched or refreshed
+	 * @param dependency the token required for fetching or {@code null}
+	 * @param refresher  refreshes an expired token (without the dependency) or {@code null}
+	 */
+	record TokenHop<D extends Token, T extends Token>(
+		TokenKey<T> key,
+		URI uri,
+		TokenKey<D> dependency,
+		Function<D, T> fetcher,
+		UnaryOperator<T> refresher
+	)
+	{
+	}
 }
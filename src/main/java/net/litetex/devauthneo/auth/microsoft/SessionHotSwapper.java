@@ -0,0 +1,139 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.auth.shared.ServerClock;
+import net.litetex.devauthneo.config.refresh.SessionHotSwapConfig;
+
+
+/**
+ * Keeps the session of the running game valid: Shortly before the session token expires, a new one is fetched (using
+ * the usual token chain) in the background and handed to the game.
+ * <p>
+ * Intended for long-running (e.g. test) clients, which would otherwise need to be restarted once the session expires.
+ * No interactive logins are executed and the shared HTTP client is closed after each renewal.
+ * </p>
+ * <p>
+ * Only the session used for joining servers is renewed: the services the game created from the token at startup
+ * (e.g. the {@code UserApiService}) keep using the original one.
+ * </p>
+ */
+public final class SessionHotSwapper
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SessionHotSwapper.class);
+	
+	// Prevents refreshing continuously when the refresh ahead duration exceeds the lifetime of a session
+	private static final Duration MIN_INTERVAL = Duration.ofMinutes(1);
+	private static final Duration RETRY_AFTER_FAILURE = Duration.ofMinutes(1);
+	
+	private final MicrosoftAuthProvider authProvider;
+	private final String account;
+	private final SessionHotSwapConfig config;
+	// Receives the previous and the new access token
+	private final BiConsumer<String, String> swapAccessToken;
+	
+	private String currentAccessToken;
+	
+	public SessionHotSwapper(
+		final MicrosoftAuthProvider authProvider,
+		final String account,
+		final String currentAccessToken,
+		final SessionHotSwapConfig config,
+		final BiConsumer<String, String> swapAccessToken)
+	{
+		this.authProvider = authProvider;
+		this.account = account;
+		this.currentAccessToken = currentAccessToken;
+		this.config = config;
+		this.swapAccessToken = swapAccessToken;
+	}
+	
+	public void start()
+	{
+		Thread.ofVirtual()
+			.name("DevAuthNeo-SessionHotSwap")
+			.start(this::run);
+	}
+	
+	private void run()
+	{
+		try
+		{
+			Instant next = this.nextRefresh();
+			while(true)
+			{
+				final Duration untilRefresh = Duration.between(ServerClock.now(), next);
+				if(untilRefresh.isPositive())
+				{
+					Thread.sleep(untilRefresh);
+				}
+				next = this.refresh();
+			}
+		}
+		catch(final InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(final InteractiveLoginRequiredException ex)
+		{
+			LOG.warn("Account requires an interactive login - The session of the game can no longer be renewed");
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Session hot swap failed unexpectedly", ex);
+		}
+	}
+	
+	private Instant refresh()
+	{
+		LOG.debug("Renewing session of the game");
+		final Map<String, String> loginParams;
+		try
+		{
+			loginParams = this.authProvider.getLoginParams(
+				this.account,
+				LoginOptions.background(this.config.refreshAhead()));
+		}
+		catch(final InteractiveLoginRequiredException ex)
+		{
+			throw ex;
+		}
+		catch(final RuntimeException ex)
+		{
+			LOG.warn("Failed to renew session - Retrying in {}", RETRY_AFTER_FAILURE, ex);
+			return ServerClock.now().plus(RETRY_AFTER_FAILURE);
+		}
+		finally
+		{
+			// The next renewal is usually far away - don't keep the connections open until then
+			HttpClientUtil.closeSharedHttpClient();
+		}
+		
+		final String accessToken = loginParams.get(MicrosoftAuthProvider.ACCESS_TOKEN);
+		if(accessToken != null && !Objects.equals(accessToken, this.currentAccessToken))
+		{
+			this.swapAccessToken.accept(this.currentAccessToken, accessToken);
+			this.currentAccessToken = accessToken;
+			LOG.info("Swapped session token of the game (services created at startup keep using the original one)");
+		}
+		return this.nextRefresh();
+	}
+	
+	private Instant nextRefresh()
+	{
+		final Instant earliest = ServerClock.now().plus(MIN_INTERVAL);
+		// Re-reads the state as the session might have been renewed by another process
+		return this.authProvider.sessionExpiry(this.account)
+			.map(expiry -> expiry.minus(this.config.refreshAhead()))
+			.filter(at -> at.isAfter(earliest))
+			.orElse(earliest);
+	}
+}
@@ -0,0 +1,136 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+import net.litetex.devauthneo.shared.io.FileNames;
+import net.litetex.devauthneo.shared.json.JSONSerializer;
+
+
+/**
+ * Stores each account in its own JSON file (named after the hash of the account), so that reading or writing an
+ * account doesn't depend on the number of accounts.
+ * <p>
+ * An existing {@link SingleFileAccountStateStore single file} is automatically migrated on first access.
+ * </p>
+ */
+final class ShardedAccountStateStore implements AccountStateStore
+{
+	static final String DIR_NAME = "microsoft-accounts";
+	private static final String SHARD_EXTENSION = ".json";
+	private static final String SHARD_LOCK_PREFIX = "microsoft-account-shard:";
+	
+	private final Path dir;
+	private final Path lockDir;
+	private final SingleFileMigration migration;
+	
+	ShardedAccountStateStore(final Path stateDir, final Path lockDir)
+	{
+		this.dir = stateDir.resolve(DIR_NAME);
+		this.lockDir = lockDir;
+		this.migration = new SingleFileMigration(stateDir, lockDir);
+	}
+	
+	@Override
+	public Optional<AccountState> read(final String account) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		return this.readShard(this.shardFile(account))
+			// Guard against hash collisions
+			.filter(shard -> account.equals(shard.account()))
+			.map(Shard::toAccountState);
+	}
+	
+	@Override
+	public Map<String, AccountState> readAll() throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		if(!Files.isDirectory(this.dir))
+		{
+			return Map.of();
+		}
+		
+		final List<Path> shardFiles;
+		try(final Stream<Path> files = Files.list(this.dir))
+		{
+			shardFiles = files.filter(f -> f.getFileName().toString().endsWith(SHARD_EXTENSION)).toList();
+		}
+		
+		final Map<String, AccountState> accountStates = new HashMap<>();
+		for(final Path shardFile : shardFiles)
+		{
+			this.readShard(shardFile).ifPresent(shard -> accountStates.put(shard.account(), shard.toAccountState()));
+		}
+		return accountStates;
+	}
+	
+	@Override
+	public void write(final Map<String, AccountState> updates) throws IOException
+	{
+		this.migration.migrateIfRequired(this);
+		for(final Map.Entry<String, AccountState> entry : updates.entrySet())
+		{
+			this.writeShard(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	private void writeShard(final String account, final AccountState update) throws IOException
+	{
+		try(final NamedFileLock ignored = NamedFileLock.acquire(
+			this.lockDir,
+			SHARD_LOCK_PREFIX + account,
+			"saving the same account"))
+		{
+			final Path shardFile = this.shardFile(account);
+			final AccountState merged = this.readShard(shardFile)
+				.filter(shard -> account.equals(shard.account()))
+				.map(shard -> shard.toAccountState().mergeWith(update))
+				.orElse(update);
+			
+			AtomicFiles.write(
+				shardFile,
+				JSONSerializer.GSON.toJson(new Shard(
+						account,
+						merged.tokens(),
+						merged.profileInfo()))
+					.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	private Optional<Shard> readShard(final Path shardFile) throws IOException
+	{
+		if(!Files.exists(shardFile))
+		{
+			return Optional.empty();
+		}
+		
+		final Shard shard = JSONSerializer.GSON.fromJson(Files.readString(shardFile), Shard.class);
+		return Optional.ofNullable(shard);
+	}
+	
+	private Path shardFile(final String account)
+	{
+		return this.dir.resolve(FileNames.hashed(account) + SHARD_EXTENSION);
+	}
+	
+	record Shard(
+		String account,
+		Tokens tokens,
+		MicrosoftAuthProvider.ProfileInfo profileInfo
+	)
+	{
+		AccountState toAccountState()
+		{
+			return new AccountState(this.tokens, this.profileInfo);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import static java.util.Objects.requireNonNullElse;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+import net.litetex.devauthneo.shared.json.JSONSerializer;
+
+
+/**
+ * Stores all accounts in a single JSON file.
+ * <p>
+ * The file is processed while streaming: When reading a single account the entries of other accounts are skipped and
+ * when writing only the updated entries are replaced while the rest of the file is copied.
+ * </p>
+ * <p>
+ * The file contains all accounts, so it's re-read while holding a lock when writing, so that changes of other accounts
+ * (e.g. by other processes) are not overwritten.
+ * </p>
+ */
+final class SingleFileAccountStateStore implements AccountStateStore
+{
+	static final String FILE_NAME = "microsoft-accounts.json";
+	// Used to lock the whole state file (instead of a single account)
+	private static final String STATE_FILE_LOCK_NAME = FILE_NAME;
+	
+	private static final String ACCOUNT_TOKENS = "accountTokens";
+	private static final String ACCOUNT_PROFILE_INFOS = "accountProfileInfos";
+	
+	private final Path file;
+	private final Path lockDir;
+	
+	SingleFileAccountStateStore(final Path stateDir, final Path lockDir)
+	{
+		this.file = stateDir.resolve(FILE_NAME);
+		this.lockDir = lockDir;
+	}
+	
+	Path file()
+	{
+		return this.file;
+	}
+	
+	@Override
+	public Optional<AccountState> read(final String account) throws IOException
+	{
+		if(!Files.exists(this.file))
+		{
+			return Optional.empty();
+		}
+		
+		Tokens tokens = null;
+		MicrosoftAuthProvider.ProfileInfo profileInfo = null;
+		try(final JsonReader reader = new JsonReader(Files.newBufferedReader(this.file, StandardCharsets.UTF_8)))
+		{
+			reader.beginObject();
+			while(reader.hasNext())
+			{
+				switch(reader.nextName())
+				{
+					case ACCOUNT_TOKENS -> tokens = readEntry(reader, account, Tokens.class);
+					case ACCOUNT_PROFILE_INFOS ->
+						profileInfo = readEntry(reader, account, MicrosoftAuthProvider.ProfileInfo.class);
+					default -> reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+		
+		return tokens != null || profileInfo != null
+			? Optional.of(new AccountState(tokens, profileInfo))
+			: Optional.empty();
+	}
+	
+	/**
+	 * Reads the value of the entry with the given key from an object - all other entries are skipped.
+	 */
+	private static <T> T readEntry(final JsonReader reader, final String key, final Type type) throws IOException
+	{
+		if(reader.peek() == JsonToken.NULL)
+		{
+			reader.nextNull();
+			return null;
+		}
+		
+		T value = null;
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			if(key.equals(reader.nextName()))
+			{
+				value = JSONSerializer.GSON.fromJson(reader, type);
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return value;
+	}
+	
+	@Override
+	public Map<String, AccountState> readAll() throws IOException
+	{
+		return this.readState()
+			.map(SingleFileAccountStateStore::toAccountStates)
+			.orElseGet(Map::of);
+	}
+	
+	/**
+	 * Copies the existing file while streaming and replaces/adds the entries of the updated accounts.
+	 */
+	@Override
+	public void write(final Map<String, AccountState> updates) throws IOException
+	{
+		final Map<String, Tokens> updatedTokens = filterNonNull(updates, AccountState::tokens);
+		final Map<String, MicrosoftAuthProvider.ProfileInfo> updatedProfileInfos =
+			filterNonNull(updates, AccountState::profileInfo);
+		
+		try(final NamedFileLock ignored = NamedFileLock.acquire(
+			this.lockDir,
+			STATE_FILE_LOCK_NAME,
+			"saving the accounts"))
+		{
+			AtomicFiles.write(this.file, out -> {
+				final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+				final JsonWriter jsonWriter = JSONSerializer.GSON.newJsonWriter(writer);
+				
+				jsonWriter.beginObject();
+				boolean tokensWritten = false;
+				boolean profileInfosWritten = false;
+				if(Files.exists(this.file))
+				{
+					try(final Reader in = Files.newBufferedReader(this.file, StandardCharsets.UTF_8))
+					{
+						final JsonReader reader = new JsonReader(in);
+						reader.beginObject();
+						while(reader.hasNext())
+						{
+							final String name = reader.nextName();
+							switch(name)
+							{
+								case ACCOUNT_TOKENS ->
+								{
+									spliceEntries(reader, jsonWriter.name(name), updatedTokens, Tokens.class);
+									tokensWritten = true;
+								}
+								case ACCOUNT_PROFILE_INFOS ->
+								{
+									spliceEntries(
+										reader,
+										jsonWriter.name(name),
+										updatedProfileInfos,
+										MicrosoftAuthProvider.ProfileInfo.class);
+									profileInfosWritten = true;
+								}
+								default -> JSONSerializer.GSON.toJson(
+									JsonParser.parseReader(reader),
+									jsonWriter.name(name));
+							}
+						}
+						reader.endObject();
+					}
+				}
+				if(!tokensWritten)
+				{
+					spliceEntries(null, jsonWriter.name(ACCOUNT_TOKENS), updatedTokens, Tokens.class);
+				}
+				if(!profileInfosWritten)
+				{
+					spliceEntries(
+						null,
+						jsonWriter.name(ACCOUNT_PROFILE_INFOS),
+						updatedProfileInfos,
+						MicrosoftAuthProvider.ProfileInfo.class);
+				}
+				jsonWriter.endObject();
+				
+				jsonWriter.flush();
+			});
+		}
+	}
+	
+	/**
+	 * Copies the entries of the object from the reader (if present) into the writer, while replacing the entries of
+	 * the updated keys. Updated keys that are not present are appended.
+	 */
+	private static <T> void spliceEntries(
+		final JsonReader reader,
+		final JsonWriter writer,
+		final Map<String, T> updates,
+		final Type type) throws IOException
+	{
+		final Map<String, T> remainingUpdates = new LinkedHashMap<>(updates);
+		
+		writer.beginObject();
+		if(reader != null && reader.peek() == JsonToken.NULL)
+		{
+			reader.nextNull();
+		}
+		else if(reader != null)
+		{
+			reader.beginObject();
+			while(reader.hasNext())
+			{
+				final String key = reader.nextName();
+				final T update = remainingUpdates.remove(key);
+				if(update != null)
+				{
+					reader.skipValue();
+					JSONSerializer.GSON.toJson(update, type, writer.name(key));
+				}
+				else
+				{
+					// Only the entry of a single account is held in memory at a time
+					JSONSerializer.GSON.toJson(JsonParser.parseReader(reader), writer.name(key));
+				}
+			}
+			reader.endObject();
+		}
+		for(final Map.Entry<String, T> entry : remainingUpdates.entrySet())
+		{
+			JSONSerializer.GSON.toJson(entry.getValue(), type, writer.name(entry.getKey()));
+		}
+		writer.endObject();
+	}
+	
+	private static <T> Map<String, T> filterNonNull(
+		final Map<String, AccountState> updates,
+		final Function<AccountState, T> getter)
+	{
+		final Map<String, T> values = new HashMap<>();
+		updates.forEach((account, update) -> {
+			final T value = getter.apply(update);
+			if(value != null)
+			{
+				values.put(account, value);
+			}
+		});
+		return values;
+	}
+	
+	private Optional<PersistentState> readState() throws IOException
+	{
+		if(!Files.exists(this.file))
+		{
+			return Optional.empty();
+		}
+		
+		final PersistentState state;
+		try(final Reader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8))
+		{
+			state = JSONSerializer.GSON.fromJson(reader, PersistentState.class);
+		}
+		return Optional.ofNullable(state);
+	}
+	
+	private static Map<String, AccountState> toAccountStates(final PersistentState state)
+	{
+		final Map<String, Tokens> accountTokens = requireNonNullElse(state.accountTokens(), Map.of());
+		final Map<String, MicrosoftAuthProvider.ProfileInfo> accountProfileInfos =
+			requireNonNullElse(state.accountProfileInfos(), Map.of());
+		
+		final Set<String> accounts = new HashSet<>(accountTokens.keySet());
+		accounts.addAll(accountProfileInfos.keySet());
+		
+		final Map<String, AccountState> accountStates = new HashMap<>();
+		for(final String account : accounts)
+		{
+			accountStates.put(account, new AccountState(accountTokens.get(account), accountProfileInfos.get(account)));
+		}
+		return accountStates;
+	}
+	
+	record PersistentState(
+		Map<String, Tokens> accountTokens,
+		Map<String, MicrosoftAuthProvider.ProfileInfo> accountProfileInfos
+	)
+	{
+	}
+}
@@ -0,0 +1,116 @@
+package net.litetex.devauthneo.auth.microsoft;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.auth.shared.NamedFileLock;
+
+
+/**
+ * Moves the accounts of an existing {@link SingleFileAccountStateStore single file} into another store on first
+ * access. Accounts that are already present in the other store are not overwritten.
+ * <p>
+ * This is only done once per state directory (tracked by a marker file), so that a single file that is created
+ * later on (e.g. by exporting the accounts) is left untouched.
+ * </p>
+ */
+final class SingleFileMigration
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SingleFileMigration.class);
+	
+	private static final String MIGRATED_SUFFIX = ".migrated";
+	private static final String LOCK_NAME = "microsoft-accounts-migration";
+	private static final String MARKER_FILE_NAME = LOCK_NAME + ".done";
+	
+	private final SingleFileAccountStateStore source;
+	private final Path markerFile;
+	private final Path lockDir;
+	
+	private boolean checked;
+	private boolean migrating;
+	
+	SingleFileMigration(final Path stateDir, final Path lockDir)
+	{
+		this.source = new SingleFileAccountStateStore(stateDir, lockDir);
+		this.markerFile = stateDir.resolve(MARKER_FILE_NAME);
+		this.lockDir = lockDir;
+	}
+	
+	synchronized void migrateIfRequired(final AccountStateStore target) throws IOException
+	{
+		// The target calls this method again when it's accessed during the migration
+		if(this.checked || this.migrating)
+		{
+			return;
+		}
+		
+		this.migrating = true;
+		try
+		{
+			this.migrateOnce(target);
+			// Only when successful, otherwise it's tried again on the next access
+			this.checked = true;
+		}
+		finally
+		{
+			this.migrating = false;
+		}
+	}
+	
+	private void migrateOnce(final AccountStateStore target) throws IOException
+	{
+		if(Files.exists(this.markerFile))
+		{
+			return;
+		}
+		
+		try(final NamedFileLock ignored = NamedFileLock.acquire(
+			this.lockDir,
+			LOCK_NAME,
+			"migrating the stored accounts"))
+		{
+			// Might have been migrated by another process in the meantime
+			if(Files.exists(this.markerFile))
+			{
+				return;
+			}
+			
+			final Path sourceFile = this.source.file();
+			if(Files.exists(sourceFile))
+			{
+				this.migrate(target, sourceFile);
+			}
+			
+			Files.createDirectories(this.markerFile.getParent());
+			Files.write(this.markerFile, new byte[0]);
+		}
+	}
+	
+	private void migrate(final AccountStateStore target, final Path sourceFile) throws IOException
+	{
+		final long startMs = System.currentTimeMillis();
+		final Set<String> presentAccounts = target.readAll().keySet();
+		final Map<String, AccountStateStore.AccountState> accountStates = new HashMap<>(this.source.readAll());
+		accountStates.keySet().removeAll(presentAccounts);
+		target.write(accountStates);
+		
+		Files.move(
+			sourceFile,
+			sourceFile.resolveSibling(sourceFile.getFileName() + MIGRATED_SUFFIX),
+			StandardCopyOption.REPLACE_EXISTING);
+		
+		LOG.info(
+			"Migrated {}x accounts from {} in {}ms",
+			accountStates.size(),
+			sourceFile.getFileName(),
+			System.currentTimeMillis() - startMs);
+	}
+}
@@ -1,54 +1,98 @@
 package net.litetex.devauthneo.auth.microsoft;
 
-import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.annotations.JsonAdapter;
+
 import net.litetex.devauthneo.auth.microsoft.token.Token;
-import net.litetex.devauthneo.auth.microsoft.token.XBLToken;
+import net.litetex.devauthneo.auth.microsoft.token.TokenKey;
 
 
+/**
+ * The tokens of an account indexed by {@link TokenKey}.
+ * <p>
+ * Is persisted as an object with the names of the keys as properties (e.g. {@code oauth}, {@code xsts}).
+ * </p>
+ */
+@JsonAdapter(Tokens.Adapter.class)
 class Tokens
 {
-	private OAuthToken oauth;
-	private XBLToken xbl;
-	private XBLToken xsts;
-	private Token session;
-	
-	OAuthToken getOauth()
-	{
-		return this.oauth;
-	}
-	
-	void setOauth(final OAuthToken oauth)
-	{
-		this.oauth = oauth;
-	}
+	private final Map<TokenKey<?>, Token> tokens = new LinkedHashMap<>();
 	
-	XBLToken getXbl()
+	synchronized <T extends Token> T get(final TokenKey<T> key)
 	{
-		return this.xbl;
+		return key.getClazz().cast(this.tokens.get(key));
 	}
 	
-	void setXbl(final XBLToken xbl)
+	synchronized <T extends Token> void set(final TokenKey<T> key, final T token)
 	{
-		this.xbl = xbl;
+		this.tokens.put(key, token);
 	}
 	
-	XBLToken getXsts()
+	/**
+	 * Type-checked variant of {@link #set(TokenKey, Token)} for keys that are only known at runtime.
+	 */
+	synchronized void put(final TokenKey<?> key, final Token token)
 	{
-		return this.xsts;
+		this.tokens.put(key, key.getClazz().cast(token));
 	}
 	
-	void setXsts(final XBLToken xsts)
+	/**
+	 * @return a snapshot of all tokens
+	 */
+	synchronized Map<TokenKey<?>, Token> entries()
 	{
-		this.xsts = xsts;
+		return new LinkedHashMap<>(this.tokens);
 	}
 	
-	Token getSession()
+	/**
+	 * @return a snapshot that is not affected by later changes (the tokens themselves are immutable)
+	 */
+	synchronized Tokens copy()
 	{
-		return this.session;
+		final Tokens copy = new Tokens();
+		copy.tokens.putAll(this.tokens);
+		return copy;
 	}
 	
-	void setSession(final Token session)
+	static class Adapter implements JsonSerializer<Tokens>, JsonDeserializer<Tokens>
 	{
-		this.session = session;
+		@Override
+		public JsonElement serialize(final Tokens src, final Type typeOfSrc, final JsonSerializationContext context)
+		{
+			final JsonObject json = new JsonObject();
+			synchronized(src)
+			{
+				src.tokens.forEach((key, token) -> json.add(key.getName(), context.serialize(token, key.getClazz())));
+			}
+			return json;
+		}
+		
+		@Override
+		public Tokens deserialize(
+			final JsonElement json,
+			final Type typeOfT,
+			final JsonDeserializationContext context)
+		{
+			final Tokens tokens = new Tokens();
+			for(final Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet())
+			{
+				final TokenKey<?> key = TokenKey.byName(entry.getKey());
+				// Skip unknown tokens (e.g. from a newer version)
+				if(key != null && !entry.getValue().isJsonNull())
+				{
+					tokens.tokens.put(key, context.deserialize(entry.getValue(), key.getClazz()));
+				}
+			}
+			return tokens;
+		}
 	}
 }
@@ -40,25 +40,15 @@ public abstract class BaseGrantFlow implements OAuthGrantFlow
 		return String.join(" ", scopes);
 	}
 	
-	protected abstract URI refreshTokenUri();
-	
 	@Override
 	public OAuthToken refreshToken(final OAuthToken token)
 	{
-		try
-		{
-			return this.getAuthorizationToken(
-				this.refreshTokenUri(),
-				orderedStringMap(
-					"grant_type", "refresh_token",
-					"refresh_token", token.getRefreshToken()
-				));
-		}
-		catch(final Exception e)
-		{
-			this.logger.error("Error refreshing OAuth token, trying to get new token", e);
-			return this.getToken();
-		}
+		return this.getAuthorizationToken(
+			this.refreshTokenUri(),
+			orderedStringMap(
+				"grant_type", "refresh_token",
+				"refresh_token", token.getRefreshToken()
+			));
 	}
 	
 	protected Map<String, String> getAuthorizationTokenParams()
@@ -70,14 +60,19 @@ public abstract class BaseGrantFlow implements OAuthGrantFlow
 	
 	protected OAuthToken getAuthorizationToken(final URI uri, final Map<String, String> extraParams)
 	{
-		return OAuthToken.fromJson(this.authorizationRequest(uri, extraParams));
+		return HttpClientUtil.jsonPostForm(uri, this.buildAuthorizationParams(extraParams), OAuthToken::fromJson);
 	}
 	
 	protected JsonObject authorizationRequest(final URI uri, final Map<String, String> extraParams)
+	{
+		return HttpClientUtil.jsonPostForm(uri, this.buildAuthorizationParams(extraParams));
+	}
+	
+	private Map<String, String> buildAuthorizationParams(final Map<String, String> extraParams)
 	{
 		final Map<String, String> params = this.getAuthorizationTokenParams();
 		params.putAll(extraParams);
-		return HttpClientUtil.jsonPostForm(uri, params);
+		return params;
 	}
 	
 	protected static Map<String, String> orderedStringMap(final String... entries)
@@ -1,5 +1,7 @@
 package net.litetex.devauthneo.auth.microsoft.oauth;
 
+import java.net.URI;
+
 import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
 
 
@@ -8,4 +10,6 @@ public interface OAuthGrantFlow
 	OAuthToken getToken();
 	
 	OAuthToken refreshToken(OAuthToken token);
+	
+	URI refreshTokenUri();
 }
@@ -70,7 +70,7 @@ public abstract class AuthCodeGrantFlow extends BaseGrantFlow
 	}
 	
 	@Override
-	protected URI refreshTokenUri()
+	public URI refreshTokenUri()
 	{
 		return OAUTH_TOKEN_URI;
 	}
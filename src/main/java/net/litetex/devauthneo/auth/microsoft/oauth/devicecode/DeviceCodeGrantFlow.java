@@ -14,6 +14,7 @@ import com.google.gson.JsonParser;
 import net.litetex.devauthneo.auth.microsoft.oauth.BaseGrantFlow;
 import net.litetex.devauthneo.auth.microsoft.token.OAuthToken;
 import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.auth.shared.JsonBodyHandler;
 import net.litetex.devauthneo.config.microsoft.oauth2.devicecode.DeviceCodeGrantFlowConfig;
 
 
@@ -96,13 +97,13 @@ public class DeviceCodeGrantFlow extends BaseGrantFlow
 				throw new IllegalStateException("Device Flow failure:" + response.body());
 			}
 			
-			return OAuthToken.fromJson(JsonParser.parseString(response.body()).getAsJsonObject());
+			return JsonBodyHandler.decode(response.body(), OAuthToken::fromJson);
 		}
 		throw new IllegalStateException("Timed out while doing device flow");
 	}
 	
 	@Override
-	protected URI refreshTokenUri()
+	public URI refreshTokenUri()
 	{
 		return TOKEN_URI;
 	}
@@ -1,8 +1,9 @@
 package net.litetex.devauthneo.auth.microsoft.token;
 
+import java.io.IOException;
 import java.time.Instant;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 
 
 public class OAuthToken extends Token
@@ -20,12 +21,29 @@ public class OAuthToken extends Token
 		return this.refreshToken;
 	}
 	
-	public static OAuthToken fromJson(final JsonObject jsonObject)
+	public static OAuthToken fromJson(final JsonReader reader) throws IOException
 	{
+		String accessToken = null;
+		String refreshToken = null;
+		Instant expiry = null;
+		
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case "access_token" -> accessToken = reader.nextString();
+				case "refresh_token" -> refreshToken = reader.nextString();
+				case "expires_in" -> expiry = parseExpiresIn(reader.nextInt());
+				default -> reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		final Instant jwtExpiry = parseJwtExpiry(accessToken);
 		return new OAuthToken(
-			jsonObject.get("access_token").getAsString(),
-			jsonObject.get("refresh_token").getAsString(),
-			parseExpiresIn(jsonObject)
-		);
+			requireField(accessToken, "access_token"),
+			requireField(refreshToken, "refresh_token"),
+			jwtExpiry != null ? jwtExpiry : requireField(expiry, "expires_in"));
 	}
 }
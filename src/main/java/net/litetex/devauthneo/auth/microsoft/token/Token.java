@@ -1,14 +1,22 @@
 package net.litetex.devauthneo.auth.microsoft.token;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Base64;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+
+import net.litetex.devauthneo.auth.shared.ServerClock;
 
 
 public class Token
 {
 	protected static final Duration EXPIRY_BUFFER = Duration.ofSeconds(10);
+	private static final int JWT_PARTS = 3;
 	
 	private final String token;
 	private final Instant expiry;
@@ -31,20 +39,97 @@ public class Token
 	
 	public boolean isExpired()
 	{
-		return Instant.now().isAfter(this.expiry);
+		return this.isExpiredWithin(Duration.ZERO);
 	}
 	
-	public static Token fromJson(final JsonObject jsonObject)
+	/**
+	 * @return if the token is expired or will expire within the given duration
+	 */
+	public boolean isExpiredWithin(final Duration duration)
 	{
+		return ServerClock.now().plus(duration).isAfter(this.expiry);
+	}
+	
+	public static Token fromJson(final JsonReader reader) throws IOException
+	{
+		String accessToken = null;
+		Instant expiry = null;
+		
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case "access_token" -> accessToken = reader.nextString();
+				case "expires_in" -> expiry = parseExpiresIn(reader.nextInt());
+				default -> reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		final Instant jwtExpiry = parseJwtExpiry(accessToken);
 		return new Token(
-			jsonObject.get("access_token").getAsString(),
-			parseExpiresIn(jsonObject));
+			requireField(accessToken, "access_token"),
+			jwtExpiry != null ? jwtExpiry : requireField(expiry, "expires_in"));
 	}
 	
-	protected static Instant parseExpiresIn(final JsonObject jsonObject)
+	protected static Instant parseExpiresIn(final int expiresInSec)
 	{
-		return Instant.now()
-			.plusSeconds(jsonObject.get("expires_in").getAsInt())
+		return ServerClock.now()
+			.plusSeconds(expiresInSec)
 			.minus(EXPIRY_BUFFER);
 	}
+	
+	/**
+	 * Reads the {@code exp} claim if the token is a JWT.
+	 * <p>
+	 * The claim is set by the issuer and is therefore more accurate than {@code expires_in}, which is relative to
+	 * the time when the response was received.
+	 * </p>
+	 *
+	 * @return the expiry (minus {@link #EXPIRY_BUFFER}) or {@code null} if it can't be determined
+	 */
+	protected static Instant parseJwtExpiry(final String token)
+	{
+		if(token == null)
+		{
+			return null;
+		}
+		
+		final String[] parts = token.split("\\.");
+		if(parts.length != JWT_PARTS)
+		{
+			return null;
+		}
+		
+		try(final JsonReader reader = new JsonReader(new InputStreamReader(
+			new ByteArrayInputStream(Base64.getUrlDecoder().decode(parts[1])),
+			StandardCharsets.UTF_8)))
+		{
+			reader.beginObject();
+			while(reader.hasNext())
+			{
+				if("exp".equals(reader.nextName()))
+				{
+					return Instant.ofEpochSecond(reader.nextLong()).minus(EXPIRY_BUFFER);
+				}
+				reader.skipValue();
+			}
+			return null;
+		}
+		catch(final Exception ex)
+		{
+			// Not a (valid) JWT
+			return null;
+		}
+	}
+	
+	protected static <T> T requireField(final T value, final String name)
+	{
+		if(value == null)
+		{
+			throw new IllegalStateException("Response is missing field '" + name + "'");
+		}
+		return value;
+	}
 }
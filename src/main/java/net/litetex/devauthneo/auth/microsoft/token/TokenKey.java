@@ -1,19 +1,31 @@
 package net.litetex.devauthneo.auth.microsoft.token;
 
+import java.util.Objects;
+import java.util.stream.Stream;
+
+
 public final class TokenKey<T extends Token>
 {
+	public static final String MINECRAFT_RELYING_PARTY = "rp://api.minecraftservices.com/";
+	private static final String XSTS_NAME = "xsts";
+	private static final String QUALIFIER_SEPARATOR = "@";
+	
 	public static final TokenKey<OAuthToken> OAUTH_TOKEN = TokenKey.of("oauth", OAuthToken.class);
 	public static final TokenKey<XBLToken> XBL_TOKEN = TokenKey.of("xbl", XBLToken.class);
-	public static final TokenKey<XBLToken> XSTS_TOKEN = TokenKey.of("xsts", XBLToken.class);
+	// Minecraft's XSTS token - the name is kept for compatibility with existing persisted tokens
+	public static final TokenKey<XBLToken> XSTS_TOKEN =
+		new TokenKey<>(XSTS_NAME, XBLToken.class, MINECRAFT_RELYING_PARTY);
 	public static final TokenKey<Token> SESSION_TOKEN = TokenKey.of("session", Token.class);
 	
 	private final String name;
 	private final Class<T> clazz;
+	private final String qualifier;
 	
-	private TokenKey(final String name, final Class<T> clazz)
+	private TokenKey(final String name, final Class<T> clazz, final String qualifier)
 	{
 		this.name = name;
 		this.clazz = clazz;
+		this.qualifier = qualifier;
 	}
 	
 	public String getName()
@@ -26,8 +38,61 @@ public final class TokenKey<T extends Token>
 		return this.clazz;
 	}
 	
+	/**
+	 * @return e.g. the relying party of an XSTS token or {@code null}
+	 */
+	public String getQualifier()
+	{
+		return this.qualifier;
+	}
+	
 	public static <T extends Token> TokenKey<T> of(final String name, final Class<T> clazz)
 	{
-		return new TokenKey<>(name, clazz);
+		return new TokenKey<>(name, clazz, null);
+	}
+	
+	/**
+	 * @return the key of the XSTS token for the given relying party
+	 */
+	public static TokenKey<XBLToken> xsts(final String relyingParty)
+	{
+		if(MINECRAFT_RELYING_PARTY.equals(relyingParty))
+		{
+			return XSTS_TOKEN;
+		}
+		return new TokenKey<>(XSTS_NAME + QUALIFIER_SEPARATOR + relyingParty, XBLToken.class, relyingParty);
+	}
+	
+	/**
+	 * @return the key with the given name or {@code null} if unknown
+	 */
+	public static TokenKey<?> byName(final String name)
+	{
+		if(name.startsWith(XSTS_NAME + QUALIFIER_SEPARATOR))
+		{
+			return xsts(name.substring(XSTS_NAME.length() + QUALIFIER_SEPARATOR.length()));
+		}
+		return Stream.of(OAUTH_TOKEN, XBL_TOKEN, XSTS_TOKEN, SESSION_TOKEN)
+			.filter(k -> k.getName().equals(name))
+			.findFirst()
+			.orElse(null);
+	}
+	
+	@Override
+	public boolean equals(final Object o)
+	{
+		return this == o || o instanceof final TokenKey<?> other && this.name.equals(other.name);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return Objects.hashCode(this.name);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return this.name;
 	}
 }
@@ -1,10 +1,11 @@
 package net.litetex.devauthneo.auth.microsoft.token;
 
+import java.io.IOException;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
 
 
 public class XBLToken extends Token
@@ -22,20 +23,85 @@ public class XBLToken extends Token
 		return this.userHash;
 	}
 	
-	public static XBLToken fromJson(final JsonObject jsonObject, final boolean hasUserHash)
+	public static XBLToken fromJson(final JsonReader reader, final boolean hasUserHash) throws IOException
 	{
+		String token = null;
+		String userHash = null;
+		Instant expiry = null;
+		
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			switch(reader.nextName())
+			{
+				case "Token" -> token = reader.nextString();
+				case "NotAfter" -> expiry = Instant.from(OffsetDateTime.parse(
+						reader.nextString(),
+						DateTimeFormatter.ISO_DATE_TIME))
+					.minus(EXPIRY_BUFFER);
+				case "DisplayClaims" ->
+				{
+					if(hasUserHash)
+					{
+						userHash = readUserHash(reader);
+					}
+					else
+					{
+						reader.skipValue();
+					}
+				}
+				default -> reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
 		return new XBLToken(
-			jsonObject.get("Token").getAsString(),
-			hasUserHash
-				? jsonObject
-				.get("DisplayClaims").getAsJsonObject()
-				.get("xui").getAsJsonArray()
-				.get(0).getAsJsonObject()
-				.get("uhs").getAsString()
-				: null,
-			Instant.from(OffsetDateTime.parse(
-					jsonObject.get("NotAfter").getAsString(),
-					DateTimeFormatter.ISO_DATE_TIME))
-				.minus(EXPIRY_BUFFER));
+			requireField(token, "Token"),
+			hasUserHash ? requireField(userHash, "DisplayClaims.xui[0].uhs") : null,
+			requireField(expiry, "NotAfter"));
+	}
+	
+	/**
+	 * Reads {@code DisplayClaims.xui[0].uhs}
+	 */
+	private static String readUserHash(final JsonReader reader) throws IOException
+	{
+		String userHash = null;
+		
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			if(!"xui".equals(reader.nextName()))
+			{
+				reader.skipValue();
+				continue;
+			}
+			
+			reader.beginArray();
+			if(reader.hasNext())
+			{
+				reader.beginObject();
+				while(reader.hasNext())
+				{
+					if("uhs".equals(reader.nextName()))
+					{
+						userHash = reader.nextString();
+					}
+					else
+					{
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			}
+			while(reader.hasNext())
+			{
+				reader.skipValue();
+			}
+			reader.endArray();
+		}
+		reader.endObject();
+		
+		return userHash;
 	}
 }
@@ -0,0 +1,262 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.reflect.TypeToken;
+
+import net.litetex.devauthneo.config.http.CircuitBreakerConfig;
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+import net.litetex.devauthneo.shared.json.JSONSerializer;
+
+
+/**
+ * Stops calling an endpoint for a cool-down period after it failed repeatedly.
+ * <p>
+ * A failure is a request that still failed transiently (see {@link RetryPolicy}) after all retries.
+ * Once the cool-down is over a single request is let through (half-open) while the others are still skipped: if it
+ * fails the circuit opens again immediately, otherwise it's closed.
+ * </p>
+ * <p>
+ * The state is persisted so that it's shared between launches (and machines that share the state directory).
+ * It's updated atomically under a lock and changes of other processes are picked up at most every
+ * {@link #RELOAD_INTERVAL_MS}ms.
+ * </p>
+ */
+final class CircuitBreaker
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+	
+	private static final String LOCK_NAME = "circuit-breakers";
+	private static final long RELOAD_INTERVAL_MS = 1_000;
+	
+	private final CircuitBreakerConfig config;
+	private final Path file;
+	private final Path lockDir;
+	
+	private Map<String, EndpointState> endpoints = new HashMap<>();
+	private FileTime loadedFileTime;
+	private long lastReloadCheckMs;
+	// Only tracked for this process
+	private final Map<String, Long> skippedCalls = new HashMap<>();
+	
+	CircuitBreaker(final CircuitBreakerConfig config, final Path file, final Path lockDir)
+	{
+		this.config = config;
+		this.file = file;
+		this.lockDir = lockDir;
+	}
+	
+	static String endpointOf(final URI uri)
+	{
+		return uri.getScheme() + "://" + uri.getRawAuthority() + uri.getRawPath();
+	}
+	
+	/**
+	 * @throws CircuitOpenException if the circuit for the endpoint is open
+	 */
+	synchronized void checkAllowed(final URI uri)
+	{
+		if(!this.config.enabled())
+		{
+			return;
+		}
+		
+		this.reloadIfStale();
+		
+		final String endpoint = endpointOf(uri);
+		final EndpointState state = this.endpoints.get(endpoint);
+		if(state == null || state.openUntil == null)
+		{
+			return;
+		}
+		
+		if(!state.openUntil.isAfter(Instant.now()) && this.update(endpoints -> this.claimProbe(endpoints, endpoint)))
+		{
+			LOG.info("Cool-down of endpoint {} is over - Letting a single request through", endpoint);
+			return;
+		}
+		
+		final EndpointState currentState = this.endpoints.get(endpoint);
+		throw new CircuitOpenException(
+			endpoint,
+			currentState != null ? currentState.openUntil : state.openUntil,
+			this.skippedCalls.merge(endpoint, 1L, Long::sum));
+	}
+	
+	/**
+	 * Lets the calling request through as the single probe - unless another one (e.g. of another process) already
+	 * claimed it. Until the probe records its result, the circuit is kept open for another cool-down.
+	 */
+	private boolean claimProbe(final Map<String, EndpointState> endpoints, final String endpoint)
+	{
+		final EndpointState state = endpoints.get(endpoint);
+		if(state == null || state.openUntil == null)
+		{
+			// Closed in the meantime
+			return true;
+		}
+		if(state.openUntil.isAfter(Instant.now()))
+		{
+			return false;
+		}
+		state.openUntil = Instant.now().plus(this.config.coolDown());
+		return true;
+	}
+	
+	synchronized void record(final URI uri, final boolean failed)
+	{
+		if(!this.config.enabled())
+		{
+			return;
+		}
+		
+		this.reloadIfStale();
+		
+		final String endpoint = endpointOf(uri);
+		if(!failed)
+		{
+			final EndpointState state = this.endpoints.get(endpoint);
+			// Nothing to update in the common case
+			if(state != null && state.consecutiveFailures > 0)
+			{
+				LOG.info("Endpoint {} is reachable again - Closing circuit", endpoint);
+				this.update(endpoints -> endpoints.remove(endpoint));
+				this.skippedCalls.remove(endpoint);
+			}
+			return;
+		}
+		
+		final EndpointState state = this.update(endpoints -> {
+			final EndpointState s = endpoints.computeIfAbsent(endpoint, ignored -> new EndpointState());
+			s.consecutiveFailures++;
+			if(s.consecutiveFailures >= this.config.failureThreshold())
+			{
+				s.openUntil = Instant.now().plus(this.config.coolDown());
+			}
+			return s;
+		});
+		if(state.openUntil != null && state.consecutiveFailures >= this.config.failureThreshold())
+		{
+			LOG.warn(
+				"Endpoint {} failed {}x in a row - Opening circuit until {}",
+				endpoint,
+				state.consecutiveFailures,
+				state.openUntil);
+		}
+	}
+	
+	/**
+	 * @return how many calls were skipped (by this process) per endpoint due to an open circuit
+	 */
+	synchronized Map<String, Long> skippedCalls()
+	{
+		return Map.copyOf(this.skippedCalls);
+	}
+	
+	/**
+	 * Applies the mutation to the current state (including changes of other processes) and persists it.
+	 */
+	private <R> R update(final Function<Map<String, EndpointState>, R> mutation)
+	{
+		if(this.file == null)
+		{
+			return mutation.apply(this.endpoints);
+		}
+		
+		final NamedFileLock lock;
+		try
+		{
+			lock = NamedFileLock.acquire(this.lockDir, LOCK_NAME, "updating the state of the circuit breakers");
+		}
+		catch(final UncheckedIOException ex)
+		{
+			LOG.warn("Failed to lock file['{}'] - Only updating the state in memory", this.file, ex);
+			return mutation.apply(this.endpoints);
+		}
+		
+		try(lock)
+		{
+			this.reload();
+			// Applied exactly once - failing to persist it (logged by save) keeps the state in memory
+			final R result = mutation.apply(this.endpoints);
+			this.save();
+			return result;
+		}
+	}
+	
+	private void reloadIfStale()
+	{
+		if(this.file == null || System.currentTimeMillis() - this.lastReloadCheckMs < RELOAD_INTERVAL_MS)
+		{
+			return;
+		}
+		this.lastReloadCheckMs = System.currentTimeMillis();
+		
+		try
+		{
+			if(Files.exists(this.file) && !Files.getLastModifiedTime(this.file).equals(this.loadedFileTime))
+			{
+				this.reload();
+			}
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to check file['{}']", this.file, ex);
+		}
+	}
+	
+	private void reload()
+	{
+		if(!Files.exists(this.file))
+		{
+			return;
+		}
+		
+		try
+		{
+			final FileTime fileTime = Files.getLastModifiedTime(this.file);
+			final Map<String, EndpointState> loaded = JSONSerializer.GSON.fromJson(
+				Files.readString(this.file),
+				new TypeToken<Map<String, EndpointState>>()
+				{
+				}.getType());
+			this.endpoints = loaded != null ? new HashMap<>(loaded) : new HashMap<>();
+			this.loadedFileTime = fileTime;
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to read file['{}']", this.file, ex);
+		}
+	}
+	
+	private void save()
+	{
+		try
+		{
+			AtomicFiles.write(this.file, JSONSerializer.GSON.toJson(this.endpoints).getBytes(StandardCharsets.UTF_8));
+			this.loadedFileTime = Files.getLastModifiedTime(this.file);
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to write file['{}']", this.file, ex);
+		}
+	}
+	
+	static class EndpointState
+	{
+		int consecutiveFailures;
+		Instant openUntil;
+	}
+}
@@ -0,0 +1,31 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.time.Instant;
+
+
+/**
+ * Thrown when a request is not executed because the circuit of the endpoint is open.
+ */
+public class CircuitOpenException extends RuntimeException
+{
+	private final String endpoint;
+	private final Instant openUntil;
+	
+	public CircuitOpenException(final String endpoint, final Instant openUntil, final long skippedCalls)
+	{
+		super("Circuit for " + endpoint + " is open until " + openUntil
+			+ " due to repeated failures - skipped " + skippedCalls + " call(s) so far");
+		this.endpoint = endpoint;
+		this.openUntil = openUntil;
+	}
+	
+	public String getEndpoint()
+	{
+		return this.endpoint;
+	}
+	
+	public Instant getOpenUntil()
+	{
+		return this.openUntil;
+	}
+}
@@ -0,0 +1,53 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+
+public enum FailureType
+{
+	/**
+	 * A temporary problem (I/O error, {@code 429}, {@code 5xx}, open circuit) - trying again later might succeed.
+	 */
+	TRANSIENT,
+	/**
+	 * The grant (e.g. the refresh token) is definitively invalid (expired, revoked, ...).
+	 */
+	INVALID_GRANT,
+	/**
+	 * Any other (permanent) problem, e.g. another OAuth error or a malformed response.
+	 */
+	OTHER;
+	
+	private static final int BAD_REQUEST = 400;
+	
+	public static FailureType classify(final Throwable throwable)
+	{
+		for(Throwable t = throwable; t != null; t = t.getCause())
+		{
+			// Trying again won't fix a malformed response (the cause might be an IOException of the parser)
+			if(t instanceof ResponseDecodeException)
+			{
+				return OTHER;
+			}
+			if(t instanceof IOException || t instanceof UncheckedIOException || t instanceof CircuitOpenException)
+			{
+				return TRANSIENT;
+			}
+			if(t instanceof final HttpStatusException statusException)
+			{
+				if(RetryPolicy.isRetryableStatus(statusException.getStatusCode()))
+				{
+					return TRANSIENT;
+				}
+				if(statusException.getStatusCode() == BAD_REQUEST
+					&& statusException.getOAuthError().filter("invalid_grant"::equals).isPresent())
+				{
+					return INVALID_GRANT;
+				}
+				return OTHER;
+			}
+		}
+		return OTHER;
+	}
+}
@@ -2,6 +2,8 @@ package net.litetex.devauthneo.auth.shared;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
@@ -9,33 +11,257 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import net.litetex.devauthneo.config.http.HttpConfig;
+import net.litetex.devauthneo.config.http.TimeoutConfig;
 import net.litetex.devauthneo.shared.json.JSONSerializer;
 
 
 public final class HttpClientUtil
 {
-	public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+	private static final Logger LOG = LoggerFactory.getLogger(HttpClientUtil.class);
+	
+	private static final int HTTP_PORT = 80;
+	private static final int HTTPS_PORT = 443;
+	
+	/**
+	 * Executor used by the shared client for asynchronous work (e.g. handling responses of async requests).
+	 */
+	public static final ExecutorService VIRTUAL_THREAD_EXECUTOR = Executors.newThreadPerTaskExecutor(
+		Thread.ofVirtual().name("DevAuthNeo-Http-", 0).factory());
+	
+	/**
+	 * Default for the connect and request timeout, see {@link TimeoutConfig}.
+	 */
+	public static final Duration DEFAULT_TIMEOUT = TimeoutConfig.DEFAULT.request();
+	
+	private static final Object SHARED_HTTP_CLIENT_LOCK = new Object();
+	private static HttpClient sharedHttpClient;
+	private static final Set<CompletableFuture<?>> BACKGROUND_TASKS = ConcurrentHashMap.newKeySet();
+	
+	static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private static final Map<String, String> JSON_HEADERS = Map.of("Content-Type", "application/json");
+	private static final JsonBodyHandler.Decoder<JsonObject> JSON_OBJECT_DECODER =
+		reader -> JsonParser.parseReader(reader).getAsJsonObject();
+	
+	private static volatile RetryPolicy retryPolicy = new RetryPolicy(HttpConfig.DEFAULT.retry());
+	private static volatile TimeoutConfig timeoutConfig = HttpConfig.DEFAULT.timeout();
+	private static volatile CircuitBreaker circuitBreaker =
+		new CircuitBreaker(HttpConfig.DEFAULT.circuitBreaker(), null, null);
+	private static volatile RateLimiter rateLimiter = new RateLimiter(HttpConfig.DEFAULT.rateLimit(), null);
+	
+	public static void configure(final HttpConfig config, final Path stateDir)
+	{
+		ServerClock.configure(stateDir);
+		retryPolicy = new RetryPolicy(config.retry());
+		timeoutConfig = config.timeout();
+		circuitBreaker = new CircuitBreaker(
+			config.circuitBreaker(),
+			stateDir.resolve("circuit-breakers.json"),
+			stateDir.resolve("locks"));
+		rateLimiter = new RateLimiter(config.rateLimit(), stateDir.resolve("rate-limits"));
+	}
+	
+	/**
+	 * @return how many calls were skipped per endpoint because the endpoint failed repeatedly
+	 */
+	public static Map<String, Long> circuitBreakerSkippedCalls()
+	{
+		return circuitBreaker.skippedCalls();
+	}
+	
+	/**
+	 * @return how long was waited per host due to rate limiting
+	 */
+	public static Map<String, Long> rateLimitWaitedMs()
+	{
+		return rateLimiter.waitedMs();
+	}
 	
 	public static HttpClient.Builder newHttpClientBuilder()
 	{
 		return HttpClient.newBuilder()
-			.connectTimeout(DEFAULT_TIMEOUT);
+			.connectTimeout(timeoutConfig.connect());
+	}
+	
+	/**
+	 * Returns the shared (lazily created) client.
+	 * <p>
+	 * The client keeps a connection pool per host, so consecutive requests to the same host reuse the
+	 * already established (HTTP/2) connection and don't require a new TCP connection and TLS handshake.
+	 * </p>
+	 */
+	public static HttpClient sharedHttpClient()
+	{
+		synchronized(SHARED_HTTP_CLIENT_LOCK)
+		{
+			if(sharedHttpClient == null)
+			{
+				sharedHttpClient = newHttpClientBuilder()
+					.version(HttpClient.Version.HTTP_2)
+					.executor(VIRTUAL_THREAD_EXECUTOR)
+					.build();
+			}
+			return sharedHttpClient;
+		}
+	}
+	
+	/**
+	 * Keeps the shared client open until the task (that might still execute requests, e.g. retries) is completed.
+	 */
+	public static <T> CompletableFuture<T> registerBackgroundTask(final CompletableFuture<T> task)
+	{
+		BACKGROUND_TASKS.add(task);
+		task.whenComplete((ignored, ignoredEx) -> BACKGROUND_TASKS.remove(task));
+		return task;
+	}
+	
+	/**
+	 * Shuts down the shared client (if present) and therefore all pooled connections once the running requests and
+	 * {@link #registerBackgroundTask(CompletableFuture) background tasks} are completed.
+	 * <p>
+	 * Should be called once all requests (e.g. for the login) are done. A new client is created when required again.
+	 * </p>
+	 */
+	public static void closeSharedHttpClient()
+	{
+		final HttpClient httpClient;
+		synchronized(SHARED_HTTP_CLIENT_LOCK)
+		{
+			httpClient = sharedHttpClient;
+		}
+		if(httpClient == null)
+		{
+			return;
+		}
+		
+		// Don't block until the background tasks (e.g. revalidations) are completed
+		CompletableFuture.allOf(BACKGROUND_TASKS.toArray(CompletableFuture[]::new))
+			.whenComplete((ignored, ignoredEx) -> {
+				synchronized(SHARED_HTTP_CLIENT_LOCK)
+				{
+					// Otherwise it was already closed by another invocation
+					if(sharedHttpClient != httpClient)
+					{
+						return;
+					}
+					sharedHttpClient = null;
+				}
+				httpClient.shutdown();
+			});
+	}
+	
+	/**
+	 * Establishes connections (DNS lookup, TCP and TLS handshake) to the hosts of the given URIs in the background,
+	 * so that they are already present in the pool of the shared client when the actual requests are executed.
+	 */
+	public static void preWarm(final Collection<URI> uris)
+	{
+		final HttpClient httpClient = sharedHttpClient();
+		uris.stream()
+			.map(uri -> URI.create(uri.getScheme() + "://" + uri.getAuthority() + "/"))
+			.distinct()
+			.forEach(uri -> {
+				final long startMs = System.currentTimeMillis();
+				httpClient.sendAsync(
+						newHttpClientRequest(uri)
+							.method("HEAD", HttpRequest.BodyPublishers.noBody())
+							.build(),
+						HttpResponse.BodyHandlers.discarding())
+					.whenComplete((response, ex) -> {
+						if(ex != null)
+						{
+							LOG.debug("Failed to pre-warm connection to {}", uri.getHost(), ex);
+							return;
+						}
+						LOG.debug(
+							"Pre-warmed connection to {} in {}ms",
+							uri.getHost(),
+							System.currentTimeMillis() - startMs);
+					});
+			});
+	}
+	
+	/**
+	 * Checks (in parallel) if at least one of the hosts of the given URIs accepts a TCP connection within the budget.
+	 */
+	public static boolean isAnyHostReachable(final Collection<URI> uris, final Duration budget)
+	{
+		final List<Callable<String>> probes = uris.stream()
+			.map(uri -> uri.getHost() + ":" + portOf(uri))
+			.distinct()
+			.<Callable<String>>map(hostAndPort -> () -> {
+				final int separatorIndex = hostAndPort.lastIndexOf(':');
+				try(final Socket socket = new Socket())
+				{
+					socket.connect(
+						new InetSocketAddress(
+							hostAndPort.substring(0, separatorIndex),
+							Integer.parseInt(hostAndPort.substring(separatorIndex + 1))),
+						(int)budget.toMillis());
+				}
+				return hostAndPort;
+			})
+			.toList();
+		
+		final long startMs = System.currentTimeMillis();
+		try
+		{
+			final String reachable =
+				VIRTUAL_THREAD_EXECUTOR.invokeAny(probes, budget.toMillis(), TimeUnit.MILLISECONDS);
+			LOG.debug("{} is reachable - took {}ms", reachable, System.currentTimeMillis() - startMs);
+			return true;
+		}
+		catch(final ExecutionException | TimeoutException ex)
+		{
+			LOG.debug("None of {} is reachable within {}ms", uris, budget.toMillis(), ex);
+			return false;
+		}
+		catch(final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Got interrupted", e);
+		}
+	}
+	
+	private static int portOf(final URI uri)
+	{
+		if(uri.getPort() != -1)
+		{
+			return uri.getPort();
+		}
+		return "http".equalsIgnoreCase(uri.getScheme()) ? HTTP_PORT : HTTPS_PORT;
 	}
 	
 	public static HttpRequest.Builder newHttpClientRequest(final URI uri)
 	{
 		return HttpRequest.newBuilder(uri)
-			.timeout(DEFAULT_TIMEOUT)
+			.timeout(timeoutConfig.requestFor(uri))
 			.setHeader("User-Agent", "Mozilla/5.0 (dev-auth-neo)");
 	}
 	
@@ -69,10 +295,21 @@ public final class HttpClientUtil
 	
 	public static JsonObject jsonPost(final URI uri, final JsonObject body)
 	{
-		return jsonPost(
-			uri,
-			HttpRequest.BodyPublishers.ofString(JSONSerializer.GSON.toJson(body)),
-			Map.of());
+		return jsonPost(uri, body, JSON_OBJECT_DECODER);
+	}
+	
+	public static <T> T jsonPost(final URI uri, final JsonObject body, final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPost(uri, jsonBodyPublisher(body), JSON_HEADERS, decoder);
+	}
+	
+	/**
+	 * @param body the already serialized JSON body, e.g. rendered from a
+	 *             {@link net.litetex.devauthneo.shared.json.JsonTemplate}
+	 */
+	public static <T> T jsonPost(final URI uri, final byte[] body, final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPost(uri, HttpRequest.BodyPublishers.ofByteArray(body), JSON_HEADERS, decoder);
 	}
 	
 	public static JsonObject jsonPost(
@@ -80,22 +317,33 @@ public final class HttpClientUtil
 		final HttpRequest.BodyPublisher bodyPublisher,
 		final Map<String, String> additionalHeaders)
 	{
-		final HttpResponse<String> response = post(uri, bodyPublisher, additionalHeaders);
-		
-		checkStatus(response);
-		
-		return JsonParser.parseString(response.body()).getAsJsonObject();
+		return jsonPost(uri, bodyPublisher, additionalHeaders, JSON_OBJECT_DECODER);
+	}
+	
+	public static <T> T jsonPost(
+		final URI uri,
+		final HttpRequest.BodyPublisher bodyPublisher,
+		final Map<String, String> additionalHeaders,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return send(buildPostRequest(uri, bodyPublisher, additionalHeaders), JsonBodyHandler.of(decoder))
+			.body()
+			.get();
 	}
 	
 	public static JsonObject jsonPostForm(
 		final URI uri,
 		final Map<String, String> formData)
 	{
-		final HttpResponse<String> response = postForm(uri, formData);
-		
-		checkStatus(response);
-		
-		return JsonParser.parseString(response.body()).getAsJsonObject();
+		return jsonPostForm(uri, formData, JSON_OBJECT_DECODER);
+	}
+	
+	public static <T> T jsonPostForm(
+		final URI uri,
+		final Map<String, String> formData,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPost(uri, formBodyPublisher(formData), formHeaders(), decoder);
 	}
 	
 	public static HttpResponse<String> postForm(
@@ -105,7 +353,7 @@ public final class HttpClientUtil
 		return post(
 			uri,
 			formBodyPublisher(formData),
-			Map.of("Content-Type", "application/x-www-form-urlencoded"));
+			formHeaders());
 	}
 	
 	public static HttpResponse<String> post(
@@ -113,22 +361,235 @@ public final class HttpClientUtil
 		final HttpRequest.BodyPublisher bodyPublisher,
 		final Map<String, String> additionalHeaders)
 	{
-		try(final HttpClient httpClient = newHttpClientBuilder().build())
+		return send(buildPostRequest(uri, bodyPublisher, additionalHeaders), HttpResponse.BodyHandlers.ofString());
+	}
+	
+	public static HttpResponse<String> get(
+		final URI uri,
+		final Map<String, String> additionalHeaders)
+	{
+		return send(buildGetRequest(uri, additionalHeaders), HttpResponse.BodyHandlers.ofString());
+	}
+	
+	private static <T> HttpResponse<T> send(
+		final HttpRequest request,
+		final HttpResponse.BodyHandler<T> bodyHandler)
+	{
+		final CircuitBreaker breaker = circuitBreaker;
+		breaker.checkAllowed(request.uri());
+		
+		final RetryPolicy policy = retryPolicy;
+		final int maxAttempts = policy.maxAttemptsFor(request.uri());
+		for(int attempt = 1; ; attempt++)
 		{
-			final HttpRequest.Builder builder = newHttpClientRequest(uri)
-				.setHeader("Accept", "application/json")
-				.POST(bodyPublisher);
+			HttpResponse<T> response = null;
+			IOException ioException = null;
+			try
+			{
+				rateLimiter.acquire(request.uri());
+				response = sharedHttpClient().send(request, bodyHandler);
+			}
+			catch(final IOException e)
+			{
+				ioException = e;
+			}
+			catch(final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Got interrupted", e);
+			}
+			
+			ServerClock.observe(response);
 			
-			additionalHeaders.forEach(builder::setHeader);
+			if(attempt >= maxAttempts || !RetryPolicy.isRetryable(request, response, ioException))
+			{
+				logAttempts(request, attempt, maxAttempts);
+				breaker.record(request.uri(), RetryPolicy.isTransient(response, ioException));
+				if(ioException != null)
+				{
+					throw new UncheckedIOException("Failed to execute request to " + request.uri(), ioException);
+				}
+				return response;
+			}
 			
-			return httpClient.send(
-				builder.build(),
-				HttpResponse.BodyHandlers.ofString()
-			);
+			sleep(logRetry(request, attempt, maxAttempts, response, ioException, policy));
+		}
+	}
+	
+	public static CompletableFuture<JsonObject> jsonPostAsync(final URI uri, final JsonObject body)
+	{
+		return jsonPostAsync(uri, body, JSON_OBJECT_DECODER);
+	}
+	
+	public static <T> CompletableFuture<T> jsonPostAsync(
+		final URI uri,
+		final JsonObject body,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPostAsync(uri, jsonBodyPublisher(body), JSON_HEADERS, decoder);
+	}
+	
+	public static <T> CompletableFuture<T> jsonPostAsync(
+		final URI uri,
+		final byte[] body,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPostAsync(uri, HttpRequest.BodyPublishers.ofByteArray(body), JSON_HEADERS, decoder);
+	}
+	
+	public static <T> CompletableFuture<T> jsonPostAsync(
+		final URI uri,
+		final HttpRequest.BodyPublisher bodyPublisher,
+		final Map<String, String> additionalHeaders,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return sendAsync(buildPostRequest(uri, bodyPublisher, additionalHeaders), JsonBodyHandler.of(decoder))
+			.thenApply(response -> response.body().get());
+	}
+	
+	public static CompletableFuture<JsonObject> jsonPostFormAsync(
+		final URI uri,
+		final Map<String, String> formData)
+	{
+		return jsonPostFormAsync(uri, formData, JSON_OBJECT_DECODER);
+	}
+	
+	public static <T> CompletableFuture<T> jsonPostFormAsync(
+		final URI uri,
+		final Map<String, String> formData,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return jsonPostAsync(uri, formBodyPublisher(formData), formHeaders(), decoder);
+	}
+	
+	/**
+	 * @return the response, the body is decoded when calling {@link Supplier#get()} and throws if the status
+	 * was not successful
+	 */
+	public static <T> CompletableFuture<HttpResponse<Supplier<T>>> jsonGetAsync(
+		final URI uri,
+		final Map<String, String> additionalHeaders,
+		final JsonBodyHandler.Decoder<T> decoder)
+	{
+		return sendAsync(buildGetRequest(uri, additionalHeaders), JsonBodyHandler.of(decoder));
+	}
+	
+	public static CompletableFuture<HttpResponse<String>> postFormAsync(
+		final URI uri,
+		final Map<String, String> formData)
+	{
+		return postAsync(
+			uri,
+			formBodyPublisher(formData),
+			formHeaders());
+	}
+	
+	public static CompletableFuture<HttpResponse<String>> postAsync(
+		final URI uri,
+		final HttpRequest.BodyPublisher bodyPublisher,
+		final Map<String, String> additionalHeaders)
+	{
+		return sendAsync(
+			buildPostRequest(uri, bodyPublisher, additionalHeaders),
+			HttpResponse.BodyHandlers.ofString());
+	}
+	
+	public static CompletableFuture<HttpResponse<String>> getAsync(
+		final URI uri,
+		final Map<String, String> additionalHeaders)
+	{
+		return sendAsync(buildGetRequest(uri, additionalHeaders), HttpResponse.BodyHandlers.ofString());
+	}
+	
+	private static <T> CompletableFuture<HttpResponse<T>> sendAsync(
+		final HttpRequest request,
+		final HttpResponse.BodyHandler<T> bodyHandler)
+	{
+		final CircuitBreaker breaker = circuitBreaker;
+		try
+		{
+			breaker.checkAllowed(request.uri());
+		}
+		catch(final CircuitOpenException ex)
+		{
+			return CompletableFuture.failedFuture(ex);
+		}
+		
+		final RetryPolicy policy = retryPolicy;
+		return sendAsync(request, bodyHandler, 1, policy.maxAttemptsFor(request.uri()), policy, breaker);
+	}
+	
+	private static <T> CompletableFuture<HttpResponse<T>> sendAsync(
+		final HttpRequest request,
+		final HttpResponse.BodyHandler<T> bodyHandler,
+		final int attempt,
+		final int maxAttempts,
+		final RetryPolicy policy,
+		final CircuitBreaker breaker)
+	{
+		final RateLimiter limiter = rateLimiter;
+		// Acquiring might block -> only do it asynchronously when required
+		final CompletableFuture<HttpResponse<T>> cfResponse = limiter.isLimited(request.uri())
+			? CompletableFuture.runAsync(() -> limiter.acquire(request.uri()), VIRTUAL_THREAD_EXECUTOR)
+				.thenCompose(ignored -> sharedHttpClient().sendAsync(request, bodyHandler))
+			: sharedHttpClient().sendAsync(request, bodyHandler);
+		return cfResponse
+			.handle((response, throwable) -> {
+				ServerClock.observe(response);
+				
+				if(attempt >= maxAttempts || !RetryPolicy.isRetryable(request, response, throwable))
+				{
+					logAttempts(request, attempt, maxAttempts);
+					breaker.record(request.uri(), RetryPolicy.isTransient(response, throwable));
+					return throwable != null
+						? CompletableFuture.<HttpResponse<T>>failedFuture(RetryPolicy.unwrap(throwable))
+						: CompletableFuture.completedFuture(response);
+				}
+				
+				final Duration delay = logRetry(request, attempt, maxAttempts, response, throwable, policy);
+				return CompletableFuture.supplyAsync(
+						() -> sendAsync(request, bodyHandler, attempt + 1, maxAttempts, policy, breaker),
+						CompletableFuture.delayedExecutor(
+							delay.toMillis(),
+							TimeUnit.MILLISECONDS,
+							VIRTUAL_THREAD_EXECUTOR))
+					.thenCompose(Function.identity());
+			})
+			.thenCompose(Function.identity());
+	}
+	
+	private static Duration logRetry(
+		final HttpRequest request,
+		final int attempt,
+		final int maxAttempts,
+		final HttpResponse<?> response,
+		final Throwable throwable,
+		final RetryPolicy policy)
+	{
+		final Duration delay = policy.delayAfter(attempt, response);
+		LOG.warn(
+			"Request to {} failed (attempt {}/{}): {} - Retrying in {}ms",
+			request.uri(),
+			attempt,
+			maxAttempts,
+			throwable != null ? RetryPolicy.unwrap(throwable).toString() : "status " + response.statusCode(),
+			delay.toMillis());
+		return delay;
+	}
+	
+	private static void logAttempts(final HttpRequest request, final int attempt, final int maxAttempts)
+	{
+		if(attempt > 1)
+		{
+			LOG.info("Request to {} finished after {}/{} attempts", request.uri(), attempt, maxAttempts);
 		}
-		catch(final IOException e)
+	}
+	
+	private static void sleep(final Duration duration)
+	{
+		try
 		{
-			throw new UncheckedIOException("Failed to execute request to " + uri, e);
+			Thread.sleep(duration);
 		}
 		catch(final InterruptedException e)
 		{
@@ -137,6 +598,38 @@ public final class HttpClientUtil
 		}
 	}
 	
+	private static HttpRequest buildPostRequest(
+		final URI uri,
+		final HttpRequest.BodyPublisher bodyPublisher,
+		final Map<String, String> additionalHeaders)
+	{
+		final HttpRequest.Builder builder = newHttpClientRequest(uri)
+			.setHeader("Accept", "application/json")
+			.POST(bodyPublisher);
+		
+		additionalHeaders.forEach(builder::setHeader);
+		
+		return builder.build();
+	}
+	
+	private static HttpRequest buildGetRequest(
+		final URI uri,
+		final Map<String, String> additionalHeaders)
+	{
+		final HttpRequest.Builder builder = newHttpClientRequest(uri)
+			.setHeader("Accept", "application/json")
+			.GET();
+		
+		additionalHeaders.forEach(builder::setHeader);
+		
+		return builder.build();
+	}
+	
+	private static Map<String, String> formHeaders()
+	{
+		return Map.of("Content-Type", FORM_CONTENT_TYPE);
+	}
+	
 	private static HttpRequest.BodyPublisher formBodyPublisher(final Map<String, String> formData)
 	{
 		return HttpRequest.BodyPublishers.ofString(formData.entrySet()
@@ -147,17 +640,25 @@ public final class HttpClientUtil
 			.collect(Collectors.joining("&")));
 	}
 	
+	private static HttpRequest.BodyPublisher jsonBodyPublisher(final JsonObject body)
+	{
+		return HttpRequest.BodyPublishers.ofString(JSONSerializer.WIRE_GSON.toJson(body));
+	}
+	
 	public static HttpResponse<String> checkStatus(final HttpResponse<String> res)
 	{
 		if(res.statusCode() != 200)
 		{
-			throw new RuntimeException(
-				"Received bad status " + res.statusCode() + " body: " + res.body()
-			);
+			throw badStatus(res.statusCode(), res.body());
 		}
 		return res;
 	}
 	
+	static HttpStatusException badStatus(final int statusCode, final String body)
+	{
+		return new HttpStatusException(statusCode, body);
+	}
+	
 	private HttpClientUtil()
 	{
 	}
@@ -0,0 +1,55 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.util.Optional;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+
+/**
+ * Thrown when a response has an unexpected status.
+ */
+public class HttpStatusException extends RuntimeException
+{
+	private final int statusCode;
+	private final String body;
+	
+	public HttpStatusException(final int statusCode, final String body)
+	{
+		super("Received bad status " + statusCode + " body: " + body);
+		this.statusCode = statusCode;
+		this.body = body;
+	}
+	
+	public int getStatusCode()
+	{
+		return this.statusCode;
+	}
+	
+	public String getBody()
+	{
+		return this.body;
+	}
+	
+	/**
+	 * @return the {@code error} field of an OAuth2 error response (e.g. {@code invalid_grant}) if present
+	 */
+	public Optional<String> getOAuthError()
+	{
+		try
+		{
+			final JsonElement element = JsonParser.parseString(this.body);
+			return Optional.of(element)
+				.filter(JsonElement::isJsonObject)
+				.map(JsonElement::getAsJsonObject)
+				.map(o -> o.get("error"))
+				.filter(JsonElement::isJsonPrimitive)
+				.map(JsonElement::getAsString);
+		}
+		catch(final Exception ex)
+		{
+			// Not JSON
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import com.google.gson.stream.JsonReader;
+
+
+/**
+ * Decodes successful responses directly from the body stream using a {@link JsonReader}, so that no intermediate
+ * {@link String} or JSON tree needs to be created.
+ * <p>
+ * Decoding starts immediately on a virtual thread (and not on the client's threads) and always closes the stream,
+ * even if the caller never evaluates the returned {@link Supplier} (e.g. due to an exception in between).
+ * If the response is not successful the body is kept as text and the supplier throws instead.
+ * </p>
+ */
+public final class JsonBodyHandler<T> implements HttpResponse.BodyHandler<Supplier<T>>
+{
+	private static final int OK = 200;
+	
+	private final Decoder<T> decoder;
+	
+	private JsonBodyHandler(final Decoder<T> decoder)
+	{
+		this.decoder = decoder;
+	}
+	
+	public static <T> JsonBodyHandler<T> of(final Decoder<T> decoder)
+	{
+		return new JsonBodyHandler<>(decoder);
+	}
+	
+	@Override
+	public HttpResponse.BodySubscriber<Supplier<T>> apply(final HttpResponse.ResponseInfo responseInfo)
+	{
+		final int statusCode = responseInfo.statusCode();
+		if(statusCode != OK)
+		{
+			return HttpResponse.BodySubscribers.mapping(
+				HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+				body -> () -> {
+					throw HttpClientUtil.badStatus(statusCode, body);
+				});
+		}
+		
+		return HttpResponse.BodySubscribers.mapping(
+			HttpResponse.BodySubscribers.ofInputStream(),
+			this::decodeStreamAsync);
+	}
+	
+	private Supplier<T> decodeStreamAsync(final InputStream is)
+	{
+		final CompletableFuture<T> cfDecoded = CompletableFuture.supplyAsync(
+			() -> decode(new InputStreamReader(is, StandardCharsets.UTF_8), this.decoder),
+			HttpClientUtil.VIRTUAL_THREAD_EXECUTOR);
+		return () -> {
+			try
+			{
+				return cfDecoded.join();
+			}
+			catch(final CompletionException ex)
+			{
+				if(ex.getCause() instanceof final RuntimeException cause)
+				{
+					throw cause;
+				}
+				throw ex;
+			}
+		};
+	}
+	
+	public static <T> T decode(final String json, final Decoder<T> decoder)
+	{
+		return decode(new StringReader(json), decoder);
+	}
+	
+	private static <T> T decode(final Reader in, final Decoder<T> decoder)
+	{
+		try(final JsonReader reader = new JsonReader(in))
+		{
+			return decoder.decode(reader);
+		}
+		catch(final IOException | RuntimeException e)
+		{
+			throw new ResponseDecodeException("Failed to decode response", e);
+		}
+	}
+	
+	@FunctionalInterface
+	public interface Decoder<T>
+	{
+		T decode(JsonReader reader) throws IOException;
+	}
+}
@@ -0,0 +1,233 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.shared.io.FileNames;
+
+
+/**
+ * Named lock (e.g. for an account or a shared file) that is shared by all processes using the same lock directory.
+ * It's either held exclusively or {@link #acquireShared(Path, String, String) shared} (e.g. by readers).
+ * <p>
+ * {@link FileLock}s are held on behalf of the whole JVM, therefore threads of the same process are additionally
+ * synchronized and shared holders of the same process use a single {@link FileLock}.<br/>
+ * The lock is not reentrant: acquiring it again on the same thread fails immediately (instead of deadlocking or
+ * failing with an {@link java.nio.channels.OverlappingFileLockException}).
+ * </p>
+ */
+public final class NamedFileLock implements AutoCloseable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(NamedFileLock.class);
+	
+	private static final Map<Path, ProcessLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+	
+	private final ProcessLock processLock;
+	private final boolean shared;
+	private final FileLock fileLock;
+	
+	private NamedFileLock(final ProcessLock processLock, final boolean shared, final FileLock fileLock)
+	{
+		this.processLock = processLock;
+		this.shared = shared;
+		this.fileLock = fileLock;
+	}
+	
+	/**
+	 * Blocks until the lock for the account is acquired.
+	 */
+	public static NamedFileLock acquire(final Path lockDir, final String account)
+	{
+		return acquire(lockDir, account, "logging in the same account");
+	}
+	
+	/**
+	 * Blocks until the lock with the given name is exclusively acquired.
+	 *
+	 * @param activity what the process holding the lock does, used when logging that it's waited for
+	 */
+	public static NamedFileLock acquire(final Path lockDir, final String name, final String activity)
+	{
+		return acquire(lockDir, name, activity, false);
+	}
+	
+	/**
+	 * Blocks until the lock with the given name is acquired shared, i.e. it might be held by other shared holders
+	 * at the same time but not exclusively.
+	 *
+	 * @param activity what the process holding the lock does, used when logging that it's waited for
+	 */
+	public static NamedFileLock acquireShared(final Path lockDir, final String name, final String activity)
+	{
+		return acquire(lockDir, name, activity, true);
+	}
+	
+	private static NamedFileLock acquire(
+		final Path lockDir,
+		final String name,
+		final String activity,
+		final boolean shared)
+	{
+		final Path file = lockDir.resolve(FileNames.hashed(name) + ".lock").toAbsolutePath();
+		
+		final ProcessLock processLock = PROCESS_LOCKS.computeIfAbsent(file, ignored -> new ProcessLock());
+		if(processLock.isHeldByCurrentThread())
+		{
+			throw new IllegalStateException("Lock " + name + " is already held by the current thread");
+		}
+		final Lock threadLock = processLock.threadLock(shared);
+		threadLock.lock();
+		try
+		{
+			Files.createDirectories(lockDir);
+			return new NamedFileLock(
+				processLock,
+				shared,
+				shared ? processLock.acquireShared(file, activity) : lockFile(file, activity, false));
+		}
+		catch(final IOException ex)
+		{
+			threadLock.unlock();
+			throw new UncheckedIOException("Failed to acquire lock " + name, ex);
+		}
+		catch(final RuntimeException ex)
+		{
+			threadLock.unlock();
+			throw ex;
+		}
+	}
+	
+	private static FileLock lockFile(final Path file, final String activity, final boolean shared) throws IOException
+	{
+		// Shared locks require a readable channel
+		final FileChannel channel = FileChannel.open(
+			file,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try
+		{
+			FileLock fileLock = channel.tryLock(0, Long.MAX_VALUE, shared);
+			if(fileLock == null)
+			{
+				LOG.info("Waiting for another process that is currently {}", activity);
+				final long startMs = System.currentTimeMillis();
+				fileLock = channel.lock(0, Long.MAX_VALUE, shared);
+				LOG.info("Waited {}ms for the other process", System.currentTimeMillis() - startMs);
+			}
+			return fileLock;
+		}
+		catch(final IOException | RuntimeException ex)
+		{
+			closeQuietly(channel);
+			throw ex;
+		}
+	}
+	
+	@Override
+	public void close()
+	{
+		try
+		{
+			if(this.shared)
+			{
+				this.processLock.releaseShared();
+			}
+			else
+			{
+				release(this.fileLock);
+			}
+		}
+		finally
+		{
+			this.processLock.threadLock(this.shared).unlock();
+		}
+	}
+	
+	private static void release(final FileLock fileLock)
+	{
+		try
+		{
+			fileLock.release();
+		}
+		catch(final IOException ex)
+		{
+			LOG.warn("Failed to release lock", ex);
+		}
+		finally
+		{
+			closeQuietly(fileLock.channel());
+		}
+	}
+	
+	private static void closeQuietly(final FileChannel channel)
+	{
+		if(channel == null)
+		{
+			return;
+		}
+		try
+		{
+			channel.close();
+		}
+		catch(final IOException ex)
+		{
+			LOG.debug("Failed to close channel", ex);
+		}
+	}
+	
+	/**
+	 * State of a lock file inside this process.
+	 */
+	private static final class ProcessLock
+	{
+		private final ReentrantReadWriteLock threadLock = new ReentrantReadWriteLock();
+		
+		// The JVM rejects overlapping file locks (even if both are shared)
+		// -> a single one is held on behalf of all shared holders; guarded by this
+		private FileLock sharedFileLock;
+		private int sharedHolders;
+		
+		Lock threadLock(final boolean shared)
+		{
+			return shared ? this.threadLock.readLock() : this.threadLock.writeLock();
+		}
+		
+		boolean isHeldByCurrentThread()
+		{
+			return this.threadLock.isWriteLockedByCurrentThread() || this.threadLock.getReadHoldCount() > 0;
+		}
+		
+		synchronized FileLock acquireShared(final Path file, final String activity) throws IOException
+		{
+			if(this.sharedHolders == 0)
+			{
+				this.sharedFileLock = lockFile(file, activity, true);
+			}
+			this.sharedHolders++;
+			return this.sharedFileLock;
+		}
+		
+		synchronized void releaseShared()
+		{
+			this.sharedHolders--;
+			if(this.sharedHolders == 0)
+			{
+				release(this.sharedFileLock);
+				this.sharedFileLock = null;
+			}
+		}
+	}
+}
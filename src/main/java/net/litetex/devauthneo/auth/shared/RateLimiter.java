@@ -0,0 +1,142 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.config.http.RateLimitConfig;
+
+
+/**
+ * Token bucket rate limiter (per host) that is shared by all processes using the same state directory.
+ * <p>
+ * The state of each bucket is stored in a small file that is only accessed while holding a lock on it.
+ * A request always reserves a token - if none is available the bucket goes negative and the caller waits until
+ * the token would have been refilled. This way concurrent callers are queued fairly without polling.
+ * </p>
+ */
+final class RateLimiter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(RateLimiter.class);
+	
+	// tokens (double) + last refill (long)
+	private static final int STATE_BYTES = Double.BYTES + Long.BYTES;
+	private static final double MS_PER_MINUTE = 60_000.0;
+	
+	private final RateLimitConfig config;
+	private final Path dir;
+	// FileLocks are held on behalf of the whole JVM -> additionally synchronize between the threads of this process
+	private final Map<String, Object> hostLocks = new ConcurrentHashMap<>();
+	private final Map<String, Long> waitedMs = new ConcurrentHashMap<>();
+	
+	RateLimiter(final RateLimitConfig config, final Path dir)
+	{
+		this.config = config;
+		this.dir = dir;
+	}
+	
+	boolean isLimited(final URI uri)
+	{
+		return this.dir != null && this.ratePerMs(uri.getHost()) > 0;
+	}
+	
+	/**
+	 * Blocks until a request to the host of the given URI is allowed.
+	 */
+	void acquire(final URI uri)
+	{
+		if(!this.isLimited(uri))
+		{
+			return;
+		}
+		
+		final String host = uri.getHost();
+		final long waitMs = this.reserve(host);
+		if(waitMs <= 0)
+		{
+			return;
+		}
+		
+		LOG.info("Waiting {}ms for rate limit of {}", waitMs, host);
+		this.waitedMs.merge(host, waitMs, Long::sum);
+		try
+		{
+			Thread.sleep(Duration.ofMillis(waitMs));
+		}
+		catch(final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Got interrupted", e);
+		}
+	}
+	
+	/**
+	 * @return how long was waited per host due to rate limiting
+	 */
+	Map<String, Long> waitedMs()
+	{
+		return Map.copyOf(this.waitedMs);
+	}
+	
+	private long reserve(final String host)
+	{
+		final double ratePerMs = this.ratePerMs(host);
+		final int burst = Math.max(1, this.config.burst());
+		
+		synchronized(this.hostLocks.computeIfAbsent(host, ignored -> new Object()))
+		{
+			try
+			{
+				Files.createDirectories(this.dir);
+				try(final FileChannel channel = FileChannel.open(
+					this.dir.resolve(host + ".bucket"),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+					final FileLock ignored = channel.lock())
+				{
+					final long nowMs = System.currentTimeMillis();
+					
+					final ByteBuffer buffer = ByteBuffer.allocate(STATE_BYTES);
+					double tokens = burst;
+					if(channel.read(buffer, 0) == STATE_BYTES)
+					{
+						buffer.flip();
+						final double storedTokens = buffer.getDouble();
+						final long lastRefillMs = buffer.getLong();
+						tokens = Math.min(burst, storedTokens + Math.max(0, nowMs - lastRefillMs) * ratePerMs);
+					}
+					
+					tokens -= 1;
+					
+					buffer.clear();
+					buffer.putDouble(tokens).putLong(nowMs).flip();
+					channel.write(buffer, 0);
+					
+					return tokens >= 0 ? 0 : (long)Math.ceil(-tokens / ratePerMs);
+				}
+			}
+			catch(final IOException ex)
+			{
+				LOG.warn("Failed to access rate limit state of {} - Not limiting", host, ex);
+				return 0;
+			}
+		}
+	}
+	
+	private double ratePerMs(final String host)
+	{
+		return this.config.requestsPerMinutePerHost().getOrDefault(host, 0) / MS_PER_MINUTE;
+	}
+}
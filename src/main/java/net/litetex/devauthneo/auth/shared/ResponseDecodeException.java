@@ -0,0 +1,12 @@
+package net.litetex.devauthneo.auth.shared;
+
+/**
+ * Thrown when a successful response could not be decoded (e.g. because it's malformed).
+ */
+public class ResponseDecodeException extends RuntimeException
+{
+	public ResponseDecodeException(final String message, final Throwable cause)
+	{
+		super(message, cause);
+	}
+}
@@ -0,0 +1,141 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.litetex.devauthneo.config.http.RetryConfig;
+
+
+/**
+ * Determines if and when a failed request should be retried.
+ * <p>
+ * Only transient failures are retried: I/O errors (e.g. connection resets, timeouts), {@code 429} and
+ * {@code 5xx} responses. The delay grows exponentially (with jitter) and respects the {@code Retry-After} header.
+ * </p>
+ * <p>
+ * Form posts are only used for the OAuth endpoints. These might consume a single-use value (e.g. a refresh token or
+ * an authorization code) before failing, so they are only retried when the request didn't reach the server
+ * (connect failures, {@code 429}).
+ * </p>
+ */
+final class RetryPolicy
+{
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final int SERVER_ERROR_START = 500;
+	// Prevent overflows
+	private static final int MAX_BACKOFF_SHIFT = 20;
+	
+	private final RetryConfig config;
+	
+	RetryPolicy(final RetryConfig config)
+	{
+		this.config = config;
+	}
+	
+	int maxAttemptsFor(final URI uri)
+	{
+		return this.config.maxAttemptsFor(uri);
+	}
+	
+	static boolean isRetryable(final HttpRequest request, final HttpResponse<?> response, final Throwable throwable)
+	{
+		if(!isFormPost(request))
+		{
+			return isTransient(response, throwable);
+		}
+		if(throwable != null)
+		{
+			final Throwable cause = unwrap(throwable);
+			return cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException;
+		}
+		return response != null && response.statusCode() == TOO_MANY_REQUESTS;
+	}
+	
+	private static boolean isFormPost(final HttpRequest request)
+	{
+		return "POST".equals(request.method())
+			&& request.headers().firstValue("Content-Type")
+				.filter(HttpClientUtil.FORM_CONTENT_TYPE::equals)
+				.isPresent();
+	}
+	
+	/**
+	 * @return if the failure is transient, i.e. the same request might succeed later
+	 */
+	static boolean isTransient(final HttpResponse<?> response, final Throwable throwable)
+	{
+		if(throwable != null)
+		{
+			return unwrap(throwable) instanceof IOException;
+		}
+		return response != null && isRetryableStatus(response.statusCode());
+	}
+	
+	static boolean isRetryableStatus(final int statusCode)
+	{
+		return statusCode == TOO_MANY_REQUESTS || statusCode >= SERVER_ERROR_START;
+	}
+	
+	static Throwable unwrap(final Throwable throwable)
+	{
+		return throwable instanceof CompletionException && throwable.getCause() != null
+			? throwable.getCause()
+			: throwable;
+	}
+	
+	/**
+	 * @param attempt the attempt that failed (starting at 1)
+	 */
+	Duration delayAfter(final int attempt, final HttpResponse<?> response)
+	{
+		final long maxMs = this.config.maxBackoff().toMillis();
+		
+		final long exponentialMs = Math.min(
+			maxMs,
+			this.config.initialBackoff().toMillis() << Math.min(attempt - 1, MAX_BACKOFF_SHIFT));
+		// Equal jitter: Keep at least half of the delay so that retries are still spread out
+		final long jitteredMs = exponentialMs / 2 + ThreadLocalRandom.current().nextLong(exponentialMs / 2 + 1);
+		
+		final long retryAfterMs = Optional.ofNullable(response)
+			.flatMap(r -> r.headers().firstValue("Retry-After"))
+			.map(RetryPolicy::parseRetryAfterMs)
+			.orElse(0L);
+		
+		return Duration.ofMillis(Math.min(maxMs, Math.max(jitteredMs, retryAfterMs)));
+	}
+	
+	private static long parseRetryAfterMs(final String value)
+	{
+		try
+		{
+			return Duration.ofSeconds(Long.parseLong(value.trim())).toMillis();
+		}
+		catch(final NumberFormatException ignored)
+		{
+			// Not a number -> Might be a HTTP date
+		}
+		try
+		{
+			return Math.max(
+				0,
+				Duration.between(
+					ServerClock.now(),
+					ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant()
+				).toMillis());
+		}
+		catch(final Exception ignored)
+		{
+			return 0;
+		}
+	}
+}
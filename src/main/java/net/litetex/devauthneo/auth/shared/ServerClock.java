@@ -0,0 +1,157 @@
+package net.litetex.devauthneo.auth.shared;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.shared.io.AtomicFiles;
+import net.litetex.devauthneo.shared.io.FileNames;
+
+
+/**
+ * Estimates the offset between the local clock and the clock of the servers using the {@code Date} header of
+ * responses.
+ * <p>
+ * Token expiries are handled in server time, so that a drifting local clock (e.g. inside a VM) doesn't cause
+ * tokens to be used after they expired or to be refreshed too early.
+ * </p>
+ * <p>
+ * The offset is persisted per host (as the state directory might be shared with machines whose clocks differ), so
+ * that it can already be used before the first response was received.
+ * </p>
+ */
+public final class ServerClock
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ServerClock.class);
+	
+	// The Date header only has a precision of seconds -> assume the middle of the second
+	private static final long DATE_HEADER_PRECISION_COMPENSATION_MS = 500;
+	// Only log when the skew is relevant
+	private static final Duration LOG_SKEW_THRESHOLD = Duration.ofSeconds(5);
+	// Changes below the precision of the Date header are not persisted
+	private static final Duration PERSIST_THRESHOLD = Duration.ofSeconds(2);
+	
+	private static volatile long offsetMs;
+	private static volatile Path offsetFile;
+	private static volatile long persistedOffsetMs;
+	
+	private ServerClock()
+	{
+	}
+	
+	/**
+	 * @return the current time of the servers
+	 */
+	public static Instant now()
+	{
+		return Instant.now().plusMillis(offsetMs);
+	}
+	
+	public static long offsetMs()
+	{
+		return offsetMs;
+	}
+	
+	/**
+	 * Restores the offset that was previously estimated on this host, it's used until the first response was
+	 * received. Further estimates are persisted when they differ.
+	 */
+	public static void configure(final Path stateDir)
+	{
+		final Path file = stateDir.resolve("server-clock").resolve(FileNames.hashed(hostName()) + ".offset");
+		try
+		{
+			if(Files.exists(file))
+			{
+				persistedOffsetMs = Long.parseLong(Files.readString(file).trim());
+				offsetMs = persistedOffsetMs;
+			}
+		}
+		catch(final IOException | NumberFormatException ex)
+		{
+			LOG.warn("Failed to read file['{}']", file, ex);
+		}
+		offsetFile = file;
+	}
+	
+	private static String hostName()
+	{
+		// Resolving the local host might require a (slow) lookup -> prefer the environment
+		return Stream.of("COMPUTERNAME", "HOSTNAME")
+			.map(System::getenv)
+			.filter(Objects::nonNull)
+			.findFirst()
+			.orElseGet(() -> {
+				try
+				{
+					return InetAddress.getLocalHost().getHostName();
+				}
+				catch(final UnknownHostException ex)
+				{
+					return "unknown";
+				}
+			});
+	}
+	
+	static void observe(final HttpResponse<?> response)
+	{
+		if(response == null)
+		{
+			return;
+		}
+		
+		final long receivedAtMs = System.currentTimeMillis();
+		response.headers().firstValue("Date").ifPresent(date -> {
+			try
+			{
+				final long serverMs = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME)
+					.toInstant()
+					.toEpochMilli() + DATE_HEADER_PRECISION_COMPENSATION_MS;
+				final long newOffsetMs = serverMs - receivedAtMs;
+				if(Math.abs(newOffsetMs) >= LOG_SKEW_THRESHOLD.toMillis()
+					&& Math.abs(newOffsetMs - offsetMs) >= LOG_SKEW_THRESHOLD.toMillis())
+				{
+					LOG.info("Local clock differs from server clock by {}ms", newOffsetMs);
+				}
+				offsetMs = newOffsetMs;
+				persistIfChanged(newOffsetMs);
+			}
+			catch(final Exception ex)
+			{
+				LOG.debug("Failed to parse Date header '{}'", date, ex);
+			}
+		});
+	}
+	
+	private static void persistIfChanged(final long newOffsetMs)
+	{
+		final Path file = offsetFile;
+		if(file == null || Math.abs(newOffsetMs - persistedOffsetMs) < PERSIST_THRESHOLD.toMillis())
+		{
+			return;
+		}
+		persistedOffsetMs = newOffsetMs;
+		
+		try
+		{
+			AtomicFiles.write(file, Long.toString(newOffsetMs).getBytes(StandardCharsets.UTF_8));
+		}
+		catch(final IOException ex)
+		{
+			LOG.warn("Failed to write file['{}']", file, ex);
+		}
+	}
+}
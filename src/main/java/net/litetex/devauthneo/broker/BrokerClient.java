@@ -0,0 +1,101 @@
+package net.litetex.devauthneo.broker;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+
+
+/**
+ * Queries a running {@link TokenBroker} for login params.
+ */
+public final class BrokerClient
+{
+	private static final Logger LOG = LoggerFactory.getLogger(BrokerClient.class);
+	
+	private BrokerClient()
+	{
+	}
+	
+	/**
+	 * @param timeout for connecting and receiving the response
+	 * @return the login params or empty if no broker is running or it failed to provide them
+	 */
+	public static Optional<Map<String, String>> query(
+		final Path stateDir,
+		final String account,
+		final Duration timeout)
+	{
+		final Path socketPath = BrokerProtocol.socketPath(stateDir);
+		if(!Files.exists(socketPath))
+		{
+			LOG.debug("No broker running - {} does not exist", socketPath);
+			return Optional.empty();
+		}
+		
+		final long startMs = System.currentTimeMillis();
+		try(final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX))
+		{
+			// Blocking channels don't support read timeouts -> closing the channel aborts the read
+			final CompletableFuture<BrokerProtocol.Response> cfResponse = CompletableFuture.supplyAsync(
+				() -> {
+					try
+					{
+						channel.connect(UnixDomainSocketAddress.of(socketPath));
+						BrokerProtocol.write(Channels.newOutputStream(channel), new BrokerProtocol.Request(account));
+						return BrokerProtocol.read(
+							new BufferedReader(new InputStreamReader(
+								Channels.newInputStream(channel),
+								StandardCharsets.UTF_8)),
+							BrokerProtocol.Response.class);
+					}
+					catch(final Exception ex)
+					{
+						throw new IllegalStateException("Failed to communicate with broker", ex);
+					}
+				},
+				HttpClientUtil.VIRTUAL_THREAD_EXECUTOR);
+			
+			final BrokerProtocol.Response response = cfResponse.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+			if(response.error() != null || response.loginParams() == null || response.loginParams().isEmpty())
+			{
+				LOG.warn("Broker failed to provide login params: {}", response.error());
+				return Optional.empty();
+			}
+			
+			LOG.debug("Received login params from broker in {}ms", System.currentTimeMillis() - startMs);
+			return Optional.of(response.loginParams());
+		}
+		catch(final InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Got interrupted", ex);
+		}
+		catch(final TimeoutException ex)
+		{
+			LOG.warn("Broker did not respond within {}ms - Continuing without it", timeout.toMillis());
+			return Optional.empty();
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to query broker - Continuing without it", ex);
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package net.litetex.devauthneo.broker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+import net.litetex.devauthneo.shared.json.JSONSerializer;
+
+
+/**
+ * The broker and its clients exchange one JSON object per line.
+ */
+final class BrokerProtocol
+{
+	private BrokerProtocol()
+	{
+	}
+	
+	static Path socketPath(final Path stateDir)
+	{
+		return stateDir.resolve("broker").resolve("broker.sock");
+	}
+	
+	static <T> T read(final BufferedReader reader, final Class<T> clazz) throws IOException
+	{
+		final String line = reader.readLine();
+		if(line == null)
+		{
+			throw new IOException("Connection closed before a message was received");
+		}
+		return JSONSerializer.WIRE_GSON.fromJson(line, clazz);
+	}
+	
+	static void write(final OutputStream out, final Object message) throws IOException
+	{
+		out.write((JSONSerializer.WIRE_GSON.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+	
+	record Request(String account)
+	{
+	}
+	
+	
+	record Response(
+		Map<String, String> loginParams,
+		String error
+	)
+	{
+	}
+}
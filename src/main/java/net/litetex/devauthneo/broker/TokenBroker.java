@@ -0,0 +1,242 @@
+package net.litetex.devauthneo.broker;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.DevAuthNeo;
+import net.litetex.devauthneo.auth.microsoft.InteractiveLoginRequiredException;
+import net.litetex.devauthneo.auth.microsoft.LoginOptions;
+import net.litetex.devauthneo.auth.microsoft.MicrosoftAuthProvider;
+import net.litetex.devauthneo.auth.shared.ServerClock;
+import net.litetex.devauthneo.config.DevAuthNeoConfig;
+
+
+/**
+ * Long-lived process that keeps the login params of all requested accounts in memory, refreshes them before they
+ * expire and serves them to game processes over a Unix domain socket inside the state directory.
+ * <p>
+ * Uses the same configuration as the mod itself.<br/>
+ * As it runs headless, no interactive logins are executed: accounts that require one are reported to the client,
+ * which then logs in itself.
+ * </p>
+ */
+public final class TokenBroker
+{
+	private static final Logger LOG = LoggerFactory.getLogger(TokenBroker.class);
+	
+	private final DevAuthNeoConfig config;
+	private final MicrosoftAuthProvider authProvider;
+	private final Map<String, CachedLogin> logins = new ConcurrentHashMap<>();
+	private final Set<String> refreshedAccounts = ConcurrentHashMap.newKeySet();
+	
+	public TokenBroker(final DevAuthNeoConfig config)
+	{
+		this.config = config;
+		this.authProvider = new MicrosoftAuthProvider(config, false);
+	}
+	
+	public static void main(final String[] args) throws IOException
+	{
+		new TokenBroker(DevAuthNeo.instance().config()).run();
+	}
+	
+	public void run() throws IOException
+	{
+		final Path socketPath = BrokerProtocol.socketPath(this.config.stateDir());
+		// Left over from a previous broker that was not shut down properly
+		Files.deleteIfExists(socketPath);
+		
+		// Everyone who can connect receives session tokens -> restrict it to the owner
+		// (already before binding so that the socket is never accessible by others)
+		Files.createDirectories(socketPath.getParent());
+		restrictToOwner(socketPath.getParent(), "rwx------");
+		
+		try(final ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX))
+		{
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			restrictToOwner(socketPath, "rw-------");
+			LOG.info("Listening on {}", socketPath);
+			
+			final String configuredAccount = this.config.account().value();
+			if(configuredAccount != null)
+			{
+				Thread.ofVirtual()
+					.name("DevAuthNeo-Broker-Warmup")
+					.start(() -> {
+						try
+						{
+							this.getLoginParams(configuredAccount);
+						}
+						catch(final Exception ex)
+						{
+							LOG.warn("Failed to warm up configured account", ex);
+						}
+					});
+			}
+			
+			while(!Thread.currentThread().isInterrupted())
+			{
+				final SocketChannel client = server.accept();
+				Thread.ofVirtual()
+					.name("DevAuthNeo-Broker-Client")
+					.start(() -> this.handle(client));
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(socketPath);
+		}
+	}
+	
+	private static void restrictToOwner(final Path path, final String permissions) throws IOException
+	{
+		// e.g. Windows, where the permissions of the user's profile directory apply
+		if(!path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+		{
+			return;
+		}
+		Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+	}
+	
+	private void handle(final SocketChannel client)
+	{
+		try(client)
+		{
+			final BrokerProtocol.Request request = BrokerProtocol.read(
+				new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8)),
+				BrokerProtocol.Request.class);
+			
+			BrokerProtocol.Response response;
+			try
+			{
+				response = new BrokerProtocol.Response(this.getLoginParams(request.account()), null);
+			}
+			catch(final Exception ex)
+			{
+				LOG.warn("Failed to get login params for requested account", ex);
+				response = new BrokerProtocol.Response(null, ex.toString());
+			}
+			BrokerProtocol.write(Channels.newOutputStream(client), response);
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to handle client", ex);
+		}
+	}
+	
+	private Map<String, String> getLoginParams(final String account)
+	{
+		final Duration refreshAhead = this.config.broker().refreshAhead();
+		final CachedLogin cachedLogin = this.logins.get(account);
+		// Don't hand out a session that expires shortly after
+		if(cachedLogin != null && cachedLogin.sessionExpiry().minus(refreshAhead).isAfter(ServerClock.now()))
+		{
+			return cachedLogin.loginParams();
+		}
+		
+		final CachedLogin login;
+		try
+		{
+			login = this.login(account, LoginOptions.background(refreshAhead));
+		}
+		catch(final InteractiveLoginRequiredException ex)
+		{
+			throw new IllegalStateException(
+				"Account requires an interactive login - Log in once without the broker",
+				ex);
+		}
+		if(this.refreshedAccounts.add(account))
+		{
+			Thread.ofVirtual()
+				.name("DevAuthNeo-Broker-Refresh")
+				.start(() -> this.refreshContinuously(account));
+		}
+		return login.loginParams();
+	}
+	
+	private void refreshContinuously(final String account)
+	{
+		final Duration refreshAhead = this.config.broker().refreshAhead();
+		try
+		{
+			boolean refreshed = false;
+			while(true)
+			{
+				final CachedLogin login = this.logins.get(account);
+				final Duration untilRefresh = Duration.between(
+					ServerClock.now(),
+					login.sessionExpiry().minus(refreshAhead));
+				if(untilRefresh.isPositive())
+				{
+					Thread.sleep(untilRefresh);
+				}
+				else if(refreshed)
+				{
+					// e.g. a cached session was used as fallback
+					LOG.warn("Session still expires soon after refreshing - Will retry on next request");
+					return;
+				}
+				
+				LOG.debug("Refreshing login ahead of expiry");
+				this.login(account, LoginOptions.background(refreshAhead));
+				refreshed = true;
+			}
+		}
+		catch(final InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch(final Exception ex)
+		{
+			LOG.warn("Failed to refresh login - Will retry on next request", ex);
+		}
+		finally
+		{
+			this.refreshedAccounts.remove(account);
+		}
+	}
+	
+	private CachedLogin login(final String account, final LoginOptions options)
+	{
+		// The provider is not designed for concurrent usage
+		synchronized(this.authProvider)
+		{
+			final Map<String, String> loginParams = this.authProvider.getLoginParams(account, options);
+			if(loginParams.isEmpty())
+			{
+				throw new IllegalStateException("No login params available");
+			}
+			
+			final CachedLogin login = new CachedLogin(
+				loginParams,
+				this.authProvider.sessionExpiry(account).orElse(Instant.EPOCH));
+			this.logins.put(account, login);
+			return login;
+		}
+	}
+	
+	record CachedLogin(
+		Map<String, String> loginParams,
+		Instant sessionExpiry
+	)
+	{
+	}
+}
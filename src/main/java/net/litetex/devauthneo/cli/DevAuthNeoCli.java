@@ -0,0 +1,237 @@
+package net.litetex.devauthneo.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.litetex.devauthneo.DevAuthNeo;
+import net.litetex.devauthneo.auth.microsoft.AccountStateBenchmark;
+import net.litetex.devauthneo.auth.microsoft.AccountStateConverter;
+import net.litetex.devauthneo.auth.microsoft.InteractiveLoginRequiredException;
+import net.litetex.devauthneo.auth.microsoft.LoginOptions;
+import net.litetex.devauthneo.auth.microsoft.MicrosoftAuthProvider;
+import net.litetex.devauthneo.auth.shared.HttpClientUtil;
+import net.litetex.devauthneo.config.DevAuthNeoConfig;
+import net.litetex.devauthneo.config.state.StateLayout;
+
+
+/**
+ * Command line entry point that can be used outside the game (e.g. at the start of a CI job).
+ * <p>
+ * Uses the same configuration as the mod itself.
+ * </p>
+ */
+public final class DevAuthNeoCli
+{
+	private static final Logger LOG = LoggerFactory.getLogger(DevAuthNeoCli.class);
+	
+	private static final int EXIT_INTERACTIVE_LOGIN_REQUIRED = 1;
+	private static final int EXIT_FAILED = 2;
+	private static final int EXIT_USAGE = 64;
+	
+	private static final String BENCHMARK_ROW_FORMAT = "%-12s %9s %13s %15s %14s %14s %16s";
+	private static final long NANOS_PER_MICRO = 1_000;
+	
+	private static final String USAGE = "Usage: warmup [account...] | convert <source-layout> <target-layout> | "
+		+ "benchmark [layout...]";
+	
+	private final DevAuthNeoConfig config;
+	
+	public DevAuthNeoCli(final DevAuthNeoConfig config)
+	{
+		this.config = config;
+	}
+	
+	public static void main(final String[] args)
+	{
+		final String command = args.length > 0 ? args[0] : "warmup";
+		final List<String> commandArgs = args.length > 0
+			? Arrays.asList(args).subList(1, args.length)
+			: List.of();
+		
+		final DevAuthNeoCli cli = new DevAuthNeoCli(DevAuthNeo.instance().config());
+		final int exitCode = switch(command)
+		{
+			case "warmup" -> cli.warmup(commandArgs);
+			case "convert" -> cli.convert(commandArgs);
+			case "benchmark" -> cli.benchmark(commandArgs);
+			default ->
+			{
+				LOG.error("Unknown command '{}' - {}", command, USAGE);
+				yield EXIT_USAGE;
+			}
+		};
+		System.exit(exitCode);
+	}
+	
+	/**
+	 * Refreshes the tokens and profile info of the given (or all cached) accounts concurrently, so that the game
+	 * doesn't need to.
+	 * <p>
+	 * No interactive logins are executed - accounts that require one are reported.
+	 * </p>
+	 */
+	public int warmup(final List<String> requestedAccounts)
+	{
+		final List<String> accounts = new ArrayList<>(!requestedAccounts.isEmpty()
+			? requestedAccounts
+			: new MicrosoftAuthProvider(this.config, false).cachedAccounts());
+		if(accounts.isEmpty())
+		{
+			LOG.warn("No accounts to warm up");
+			return 0;
+		}
+		
+		final LoginOptions options = LoginOptions.background(this.config.backgroundRefresh().refreshAhead());
+		final long startMs = System.currentTimeMillis();
+		
+		final Map<String, Future<?>> futures = new TreeMap<>();
+		try(final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor())
+		{
+			for(final String account : accounts)
+			{
+				// The provider is not designed for concurrent usage -> one per account
+				futures.put(account, executor.submit(
+					() -> new MicrosoftAuthProvider(this.config, false).getLoginParams(account, options)));
+			}
+		}
+		finally
+		{
+			HttpClientUtil.closeSharedHttpClient();
+		}
+		
+		int exitCode = 0;
+		for(final Map.Entry<String, Future<?>> entry : futures.entrySet())
+		{
+			final String account = entry.getKey();
+			try
+			{
+				entry.getValue().get();
+				LOG.info("[OK] {}", account);
+			}
+			catch(final ExecutionException ex)
+			{
+				if(ex.getCause() instanceof InteractiveLoginRequiredException)
+				{
+					LOG.warn("[INTERACTIVE LOGIN REQUIRED] {}", account);
+					exitCode = Math.max(exitCode, EXIT_INTERACTIVE_LOGIN_REQUIRED);
+				}
+				else
+				{
+					LOG.error("[FAILED] {}", account, ex.getCause());
+					exitCode = EXIT_FAILED;
+				}
+			}
+			catch(final InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				return EXIT_FAILED;
+			}
+		}
+		
+		LOG.info("Warmed up {}x accounts in {}ms", accounts.size(), System.currentTimeMillis() - startMs);
+		return exitCode;
+	}
+	
+	/**
+	 * Copies all accounts from one state layout into another (e.g. {@code convert single-file binary} imports the
+	 * JSON file into the binary format).
+	 */
+	public int convert(final List<String> args)
+	{
+		if(args.size() != 2)
+		{
+			LOG.error(USAGE);
+			return EXIT_USAGE;
+		}
+		
+		final Optional<StateLayout> optSource = StateLayout.byIdentifier(args.get(0));
+		final Optional<StateLayout> optTarget = StateLayout.byIdentifier(args.get(1));
+		if(optSource.isEmpty() || optTarget.isEmpty() || optSource.get() == optTarget.get())
+		{
+			LOG.error("Invalid layouts - Available: {}", availableLayouts());
+			return EXIT_USAGE;
+		}
+		
+		try
+		{
+			AccountStateConverter.convert(this.config.stateDir(), optSource.get(), optTarget.get());
+			return 0;
+		}
+		catch(final Exception ex)
+		{
+			LOG.error("Failed to convert", ex);
+			return EXIT_FAILED;
+		}
+	}
+	
+	/**
+	 * Compares the state layouts (by default the single JSON file and the binary format) for different numbers of
+	 * accounts.
+	 */
+	public int benchmark(final List<String> args)
+	{
+		final List<StateLayout> layouts = new ArrayList<>();
+		for(final String arg : args)
+		{
+			final Optional<StateLayout> optLayout = StateLayout.byIdentifier(arg);
+			if(optLayout.isEmpty())
+			{
+				LOG.error("Unknown layout '{}' - Available: {}", arg, availableLayouts());
+				return EXIT_USAGE;
+			}
+			layouts.add(optLayout.get());
+		}
+		if(layouts.isEmpty())
+		{
+			layouts.addAll(List.of(StateLayout.SINGLE_FILE, StateLayout.BINARY));
+		}
+		
+		final List<AccountStateBenchmark.Result> results;
+		try
+		{
+			results = AccountStateBenchmark.run(layouts, AccountStateBenchmark.DEFAULT_ACCOUNT_COUNTS);
+		}
+		catch(final Exception ex)
+		{
+			LOG.error("Benchmark failed", ex);
+			return EXIT_FAILED;
+		}
+		
+		LOG.info(String.format(
+			BENCHMARK_ROW_FORMAT,
+			"layout", "accounts", "size (bytes)", "write all (ms)", "read one (us)", "read all (ms)",
+			"update one (ms)"));
+		for(final AccountStateBenchmark.Result result : results)
+		{
+			LOG.info(String.format(
+				BENCHMARK_ROW_FORMAT,
+				result.layout().identifier(),
+				result.accounts(),
+				result.sizeBytes(),
+				result.writeAll().toMillis(),
+				result.readOne().toNanos() / NANOS_PER_MICRO,
+				result.readAll().toMillis(),
+				result.updateOne().toMillis()));
+		}
+		return 0;
+	}
+	
+	private static String availableLayouts()
+	{
+		return Arrays.stream(StateLayout.values())
+			.map(StateLayout::identifier)
+			.collect(Collectors.joining(", "));
+	}
+}
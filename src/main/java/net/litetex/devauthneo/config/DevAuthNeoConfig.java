@@ -3,14 +3,26 @@ package net.litetex.devauthneo.config;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import net.litetex.devauthneo.auth.microsoft.MicrosoftAuthProvider;
+import net.litetex.devauthneo.config.broker.BrokerConfig;
+import net.litetex.devauthneo.config.http.CircuitBreakerConfig;
+import net.litetex.devauthneo.config.http.HttpConfig;
+import net.litetex.devauthneo.config.http.RateLimitConfig;
+import net.litetex.devauthneo.config.http.RetryConfig;
+import net.litetex.devauthneo.config.http.TimeoutConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.OAuth2GrantFlowConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.authcode.EmbeddedAuthCodeGrantFlowConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.authcode.ExternalAuthCodeGrantFlowConfig;
 import net.litetex.devauthneo.config.microsoft.oauth2.devicecode.DeviceCodeGrantFlowConfig;
+import net.litetex.devauthneo.config.refresh.BackgroundRefreshConfig;
+import net.litetex.devauthneo.config.refresh.SessionHotSwapConfig;
+import net.litetex.devauthneo.config.state.StateLayout;
 import net.litetex.devauthneo.shared.config.ConfigValueContainer;
 import net.litetex.devauthneo.shared.config.Configuration;
 
@@ -20,9 +32,18 @@ public record DevAuthNeoConfig(
 	ConfigValueContainer<String> account,
 	ConfigValueContainer<String> accountType,
 	Path stateDir,
+	StateLayout stateLayout,
 	boolean forceHandleAllTokensAsExpired,
 	OAuth2GrantFlowConfig oAuth2,
-	Duration cacheProfileInfoDuration
+	Duration cacheProfileInfoDuration,
+	Duration profileInfoMaxStaleness,
+	boolean preLaunchLogin,
+	Duration loginDeadline,
+	HttpConfig http,
+	BrokerConfig broker,
+	BackgroundRefreshConfig backgroundRefresh,
+	SessionHotSwapConfig sessionHotSwap,
+	List<String> xstsAdditionalRelyingParties
 )
 {
 	@SuppressWarnings("checkstyle:MagicNumber")
@@ -36,12 +57,135 @@ public record DevAuthNeoConfig(
 				.filter(s -> !s.isEmpty())
 				.map(Paths::get)
 				.orElse(defaultStateDir),
+			buildStateLayout(configuration),
 			configuration.getBoolean("force-handle-all-tokens-as-expired", false),
 			buildOAuth2(configuration),
-			Duration.ofMinutes(configuration.getInteger("cache-profile-info-minutes", 360)) // 6h
+			Duration.ofMinutes(configuration.getInteger("cache-profile-info-minutes", 360)), // 6h
+			Duration.ofMinutes(Math.max(0, configuration.getInteger("profile-info-max-staleness-minutes", 0))),
+			configuration.getBoolean("pre-launch-login", false),
+			Duration.ofSeconds(Math.max(0, configuration.getInteger("login-deadline-seconds", 0))),
+			buildHttp(configuration),
+			new BrokerConfig(
+				configuration.getBoolean("broker.enabled", BrokerConfig.DEFAULT.enabled()),
+				Duration.ofSeconds(configuration.getInteger(
+					"broker.refresh-ahead-seconds",
+					(int)BrokerConfig.DEFAULT.refreshAhead().toSeconds())),
+				Duration.ofMillis(Math.max(0, configuration.getInteger(
+					"broker.timeout-ms",
+					(int)BrokerConfig.DEFAULT.timeout().toMillis())))),
+			buildBackgroundRefresh(configuration),
+			new SessionHotSwapConfig(
+				configuration.getBoolean("session-hot-swap.enabled", SessionHotSwapConfig.DEFAULT.enabled()),
+				Duration.ofMinutes(Math.max(0, configuration.getInteger(
+					"session-hot-swap.refresh-ahead-minutes",
+					(int)SessionHotSwapConfig.DEFAULT.refreshAhead().toMinutes())))),
+			configuration.getStringList("microsoft.xsts.additional-relying-parties")
+				.stream()
+				.map(String::trim)
+				.filter(s -> !s.isEmpty())
+				.toList()
 		);
 	}
 	
+	private static StateLayout buildStateLayout(final Configuration configuration)
+	{
+		final String layout = configuration.getString("state-layout", StateLayout.SINGLE_FILE.identifier());
+		return StateLayout.byIdentifier(layout)
+			.orElseThrow(() -> new IllegalArgumentException("Unknown state layout: " + layout));
+	}
+	
+	private static BackgroundRefreshConfig buildBackgroundRefresh(final Configuration configuration)
+	{
+		final String prefix = "background-refresh.";
+		return new BackgroundRefreshConfig(
+			configuration.getBoolean(prefix + "enabled", BackgroundRefreshConfig.DEFAULT.enabled()),
+			Duration.ofMinutes(configuration.getInteger(
+				prefix + "refresh-ahead-minutes",
+				(int)BackgroundRefreshConfig.DEFAULT.refreshAhead().toMinutes())),
+			Duration.ofSeconds(Math.max(0, configuration.getInteger(
+				prefix + "jitter-seconds",
+				(int)BackgroundRefreshConfig.DEFAULT.jitter().toSeconds()))));
+	}
+	
+	private static HttpConfig buildHttp(final Configuration configuration)
+	{
+		final String prefix = "http.";
+		
+		final String retryPrefix = prefix + "retry.";
+		final RetryConfig retry = new RetryConfig(
+			configuration.getInteger(retryPrefix + "max-attempts", RetryConfig.DEFAULT.maxAttempts()),
+			Duration.ofMillis(configuration.getInteger(
+				retryPrefix + "initial-backoff-ms",
+				(int)RetryConfig.DEFAULT.initialBackoff().toMillis())),
+			Duration.ofMillis(configuration.getInteger(
+				retryPrefix + "max-backoff-ms",
+				(int)RetryConfig.DEFAULT.maxBackoff().toMillis())),
+			parseHostValues(configuration.getStringList(retryPrefix + "max-attempts-per-host")));
+		
+		final String timeoutPrefix = prefix + "timeout.";
+		final TimeoutConfig timeout = new TimeoutConfig(
+			Duration.ofMillis(configuration.getInteger(
+				timeoutPrefix + "connect-ms",
+				(int)TimeoutConfig.DEFAULT.connect().toMillis())),
+			Duration.ofMillis(configuration.getInteger(
+				timeoutPrefix + "request-ms",
+				(int)TimeoutConfig.DEFAULT.request().toMillis())),
+			parseHostValues(configuration.getStringList(timeoutPrefix + "request-ms-per-host"))
+				.entrySet()
+				.stream()
+				.filter(e -> e.getValue() > 0)
+				.collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> Duration.ofMillis(e.getValue()))));
+		
+		final String circuitBreakerPrefix = prefix + "circuit-breaker.";
+		final CircuitBreakerConfig circuitBreaker = new CircuitBreakerConfig(
+			configuration.getInteger(
+				circuitBreakerPrefix + "failure-threshold",
+				CircuitBreakerConfig.DEFAULT.failureThreshold()),
+			Duration.ofSeconds(configuration.getInteger(
+				circuitBreakerPrefix + "cool-down-seconds",
+				(int)CircuitBreakerConfig.DEFAULT.coolDown().toSeconds())));
+		
+		final String rateLimitPrefix = prefix + "rate-limit.";
+		final RateLimitConfig rateLimit = new RateLimitConfig(
+			parseHostValues(configuration.getStringList(rateLimitPrefix + "requests-per-minute-per-host")),
+			configuration.getInteger(rateLimitPrefix + "burst", RateLimitConfig.DEFAULT.burst()));
+		
+		return new HttpConfig(
+			retry,
+			timeout,
+			circuitBreaker,
+			rateLimit,
+			configuration.getBoolean(prefix + "pre-warm", HttpConfig.DEFAULT.preWarm()),
+			Duration.ofMillis(Math.max(0, configuration.getInteger(prefix + "offline-probe-ms", 0))));
+	}
+	
+	/**
+	 * Parses entries in the format {@code host=value} (e.g. {@code xsts.auth.xboxlive.com=5}).
+	 */
+	private static Map<String, Integer> parseHostValues(final List<String> entries)
+	{
+		final Map<String, Integer> hostValues = new HashMap<>();
+		for(final String entry : entries)
+		{
+			final int separatorIndex = entry.lastIndexOf('=');
+			if(separatorIndex <= 0)
+			{
+				continue;
+			}
+			try
+			{
+				hostValues.put(
+					entry.substring(0, separatorIndex).trim(),
+					Integer.parseInt(entry.substring(separatorIndex + 1).trim()));
+			}
+			catch(final NumberFormatException ignored)
+			{
+				// Skip invalid entry
+			}
+		}
+		return Map.copyOf(hostValues);
+	}
+	
 	private static OAuth2GrantFlowConfig buildOAuth2(final Configuration configuration)
 	{
 		final String prefix = "microsoft.oauth2.";
@@ -0,0 +1,19 @@
+package net.litetex.devauthneo.config.broker;
+
+import java.time.Duration;
+
+
+public record BrokerConfig(
+	boolean enabled,
+	Duration refreshAhead,
+	Duration timeout
+)
+{
+	// The broker refreshes the tokens ahead of expiry and should therefore respond nearly immediately.
+	// When it doesn't (e.g. it hangs) the login is executed normally, so that a problematic broker doesn't delay
+	// the launch.
+	public static final BrokerConfig DEFAULT = new BrokerConfig(
+		false,
+		Duration.ofMinutes(5),
+		Duration.ofSeconds(2));
+}
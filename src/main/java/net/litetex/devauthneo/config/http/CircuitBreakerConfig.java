@@ -0,0 +1,19 @@
+package net.litetex.devauthneo.config.http;
+
+import java.time.Duration;
+
+
+public record CircuitBreakerConfig(
+	int failureThreshold,
+	Duration coolDown
+)
+{
+	public static final CircuitBreakerConfig DEFAULT = new CircuitBreakerConfig(
+		0,
+		Duration.ofMinutes(1));
+	
+	public boolean enabled()
+	{
+		return this.failureThreshold > 0;
+	}
+}
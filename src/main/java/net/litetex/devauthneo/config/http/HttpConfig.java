@@ -0,0 +1,23 @@
+package net.litetex.devauthneo.config.http;
+
+import java.time.Duration;
+
+
+public record HttpConfig(
+	RetryConfig retry,
+	TimeoutConfig timeout,
+	CircuitBreakerConfig circuitBreaker,
+	RateLimitConfig rateLimit,
+	boolean preWarm,
+	Duration offlineProbe
+)
+{
+	public static final HttpConfig DEFAULT = new HttpConfig(
+		RetryConfig.DEFAULT,
+		TimeoutConfig.DEFAULT,
+		CircuitBreakerConfig.DEFAULT,
+		RateLimitConfig.DEFAULT,
+		false,
+		Duration.ZERO
+	);
+}
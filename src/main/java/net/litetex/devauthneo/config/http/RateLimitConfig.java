@@ -0,0 +1,14 @@
+package net.litetex.devauthneo.config.http;
+
+import java.util.Map;
+
+
+public record RateLimitConfig(
+	Map<String, Integer> requestsPerMinutePerHost,
+	int burst
+)
+{
+	public static final RateLimitConfig DEFAULT = new RateLimitConfig(
+		Map.of(),
+		3);
+}
@@ -0,0 +1,25 @@
+package net.litetex.devauthneo.config.http;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+
+
+public record RetryConfig(
+	int maxAttempts,
+	Duration initialBackoff,
+	Duration maxBackoff,
+	Map<String, Integer> maxAttemptsPerHost
+)
+{
+	public static final RetryConfig DEFAULT = new RetryConfig(
+		3,
+		Duration.ofMillis(500),
+		Duration.ofSeconds(10),
+		Map.of());
+	
+	public int maxAttemptsFor(final URI uri)
+	{
+		return Math.max(1, this.maxAttemptsPerHost.getOrDefault(uri.getHost(), this.maxAttempts));
+	}
+}
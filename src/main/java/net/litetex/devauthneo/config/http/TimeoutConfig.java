@@ -0,0 +1,23 @@
+package net.litetex.devauthneo.config.http;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+
+
+public record TimeoutConfig(
+	Duration connect,
+	Duration request,
+	Map<String, Duration> requestPerHost
+)
+{
+	public static final TimeoutConfig DEFAULT = new TimeoutConfig(
+		Duration.ofSeconds(30),
+		Duration.ofSeconds(30),
+		Map.of());
+	
+	public Duration requestFor(final URI uri)
+	{
+		return this.requestPerHost.getOrDefault(uri.getHost(), this.request);
+	}
+}
@@ -0,0 +1,16 @@
+package net.litetex.devauthneo.config.refresh;
+
+import java.time.Duration;
+
+
+public record BackgroundRefreshConfig(
+	boolean enabled,
+	Duration refreshAhead,
+	Duration jitter
+)
+{
+	public static final BackgroundRefreshConfig DEFAULT = new BackgroundRefreshConfig(
+		false,
+		Duration.ofHours(12),
+		Duration.ofMinutes(5));
+}
@@ -0,0 +1,14 @@
+package net.litetex.devauthneo.config.refresh;
+
+import java.time.Duration;
+
+
+public record SessionHotSwapConfig(
+	boolean enabled,
+	Duration refreshAhead
+)
+{
+	public static final SessionHotSwapConfig DEFAULT = new SessionHotSwapConfig(
+		false,
+		Duration.ofMinutes(30));
+}
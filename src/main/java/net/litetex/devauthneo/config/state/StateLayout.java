@@ -0,0 +1,47 @@
+package net.litetex.devauthneo.config.state;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+
+/**
+ * How the state (tokens, profile info) of the accounts is persisted.
+ */
+public enum StateLayout
+{
+	/**
+	 * All accounts in a single JSON file.
+	 */
+	SINGLE_FILE("single-file"),
+	/**
+	 * A JSON file per account.
+	 */
+	SHARDED("sharded"),
+	/**
+	 * All accounts in a single compact binary file.
+	 */
+	BINARY("binary"),
+	/**
+	 * A binary snapshot of all accounts and a journal of the updates since then.
+	 */
+	JOURNAL("journal");
+	
+	private final String identifier;
+	
+	StateLayout(final String identifier)
+	{
+		this.identifier = identifier;
+	}
+	
+	public String identifier()
+	{
+		return this.identifier;
+	}
+	
+	public static Optional<StateLayout> byIdentifier(final String identifier)
+	{
+		return Arrays.stream(values())
+			.filter(l -> l.identifier.equals(identifier))
+			.findFirst();
+	}
+}
@@ -17,7 +17,7 @@ public abstract class MainMixin
 		final long startMs = System.currentTimeMillis();
 		try
 		{
-			return new DevAuthNeo().processArguments(args);
+			return DevAuthNeo.instance().processArguments(args);
 		}
 		finally
 		{
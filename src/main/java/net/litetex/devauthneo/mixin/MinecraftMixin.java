@@ -0,0 +1,30 @@
+package net.litetex.devauthneo.mixin;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import net.litetex.devauthneo.DevAuthNeo;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.User;
+import net.minecraft.client.main.GameConfig;
+
+
+@Mixin(Minecraft.class)
+public abstract class MinecraftMixin
+{
+	@Inject(method = "<init>", at = @At("TAIL"))
+	private void startSessionHotSwap(final GameConfig gameConfig, final CallbackInfo ci)
+	{
+		final Minecraft minecraft = (Minecraft)(Object)this;
+		DevAuthNeo.instance().startSessionHotSwap((previousAccessToken, accessToken) -> minecraft.execute(() -> {
+			final User user = minecraft.getUser();
+			// Only replace the session that was created by DevAuth
+			if(previousAccessToken.equals(user.getAccessToken()))
+			{
+				((UserAccessor)user).setAccessToken(accessToken);
+			}
+		}));
+	}
+}
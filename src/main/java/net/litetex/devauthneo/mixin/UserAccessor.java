@@ -0,0 +1,26 @@
+package net.litetex.devauthneo.mixin;
+
+import java.util.UUID;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Mutable;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import net.minecraft.client.User;
+
+
+@Mixin(User.class)
+public interface UserAccessor
+{
+	@Accessor("name")
+	@Mutable
+	void setName(String name);
+	
+	@Accessor("uuid")
+	@Mutable
+	void setUuid(UUID uuid);
+	
+	@Accessor("accessToken")
+	@Mutable
+	void setAccessToken(String accessToken);
+}
@@ -0,0 +1,29 @@
+package net.litetex.devauthneo.mixin;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import com.mojang.util.UndashedUuid;
+
+import net.litetex.devauthneo.DevAuthNeo;
+import net.litetex.devauthneo.auth.microsoft.MicrosoftAuthProvider;
+import net.minecraft.client.User;
+
+
+@Mixin(User.class)
+public abstract class UserMixin
+{
+	// The session of the game is created after its bootstrap - only now the pre-launch login is required
+	@Inject(method = "<init>", at = @At("TAIL"))
+	private void applyPreLaunchLogin(final CallbackInfo ci)
+	{
+		DevAuthNeo.instance().joinPreLaunchLogin().ifPresent(loginParams -> {
+			final UserAccessor user = (UserAccessor)(Object)this;
+			user.setName(loginParams.get(MicrosoftAuthProvider.USERNAME));
+			user.setUuid(UndashedUuid.fromStringLenient(loginParams.get(MicrosoftAuthProvider.UUID)));
+			user.setAccessToken(loginParams.get(MicrosoftAuthProvider.ACCESS_TOKEN));
+		});
+	}
+}
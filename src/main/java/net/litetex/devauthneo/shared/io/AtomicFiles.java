@@ -0,0 +1,82 @@
+package net.litetex.devauthneo.shared.io;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+public final class AtomicFiles
+{
+	private AtomicFiles()
+	{
+	}
+	
+	public static void write(final Path file, final byte[] content) throws IOException
+	{
+		write(file, out -> out.write(content));
+	}
+	
+	/**
+	 * Writes the content into a temporary file which then replaces the actual file.
+	 * <p>
+	 * The temporary file is synced to disk before it's moved, so that the file is never observed (e.g. after a crash)
+	 * partially written. Afterward the directory is synced, so that the replacement itself is durable.
+	 * </p>
+	 */
+	public static void write(final Path file, final ContentWriter contentWriter) throws IOException
+	{
+		final Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		
+		final Path tempFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try
+		{
+			try(final FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE))
+			{
+				final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+				contentWriter.write(out);
+				out.flush();
+				channel.force(true);
+			}
+			
+			try
+			{
+				Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch(final AtomicMoveNotSupportedException ex)
+			{
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+			forceDirectory(dir);
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+	
+	private static void forceDirectory(final Path dir)
+	{
+		try(final FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch(final IOException | UnsupportedOperationException ignored)
+		{
+			// Directories can't be opened/synced on some platforms (e.g. Windows)
+		}
+	}
+	
+	@FunctionalInterface
+	public interface ContentWriter
+	{
+		void write(OutputStream out) throws IOException;
+	}
+}
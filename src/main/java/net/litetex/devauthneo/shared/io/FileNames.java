@@ -0,0 +1,30 @@
+package net.litetex.devauthneo.shared.io;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+
+public final class FileNames
+{
+	private FileNames()
+	{
+	}
+	
+	/**
+	 * Hashes the value (e.g. an account) so that it's a valid file name and not exposed.
+	 */
+	public static String hashed(final String value)
+	{
+		try
+		{
+			return HexFormat.of().formatHex(
+				MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch(final NoSuchAlgorithmException ex)
+		{
+			throw new IllegalStateException("SHA-256 is not available", ex);
+		}
+	}
+}
@@ -21,6 +21,14 @@ public final class JSONSerializer
 		.setPrettyPrinting()
 		.create();
 	
+	/**
+	 * Compact variant for data that is sent over the wire (e.g. request bodies) and not read by humans.
+	 */
+	public static final Gson WIRE_GSON = new GsonBuilder()
+		.registerTypeAdapter(Instant.class, new InstantConverter())
+		.disableHtmlEscaping()
+		.create();
+	
 	private JSONSerializer()
 	{
 	}
@@ -0,0 +1,110 @@
+package net.litetex.devauthneo.shared.json;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A pre-serialized (compact) JSON document where values are spliced into the placeholders ({@value #PLACEHOLDER}).
+ * <p>
+ * Placeholders must be located inside JSON strings, the values are escaped accordingly.
+ * </p>
+ */
+public final class JsonTemplate
+{
+	public static final String PLACEHOLDER = "%s";
+	
+	private static final int ESCAPE_RESERVE = 16;
+	private static final char MAX_CONTROL_CHAR = 0x1F;
+	
+	private final byte[][] parts;
+	private final int constantLength;
+	
+	private JsonTemplate(final byte[][] parts)
+	{
+		this.parts = parts;
+		
+		int length = 0;
+		for(final byte[] part : parts)
+		{
+			length += part.length;
+		}
+		this.constantLength = length;
+	}
+	
+	public static JsonTemplate of(final String template)
+	{
+		final String[] parts = template.split(PLACEHOLDER, -1);
+		final byte[][] byteParts = new byte[parts.length][];
+		for(int i = 0; i < parts.length; i++)
+		{
+			byteParts[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+		}
+		return new JsonTemplate(byteParts);
+	}
+	
+	public byte[] render(final String... values)
+	{
+		if(values.length != this.parts.length - 1)
+		{
+			throw new IllegalArgumentException(
+				"Expected " + (this.parts.length - 1) + " values but got " + values.length);
+		}
+		
+		final byte[][] escapedValues = new byte[values.length][];
+		int length = this.constantLength;
+		for(int i = 0; i < values.length; i++)
+		{
+			escapedValues[i] = escape(values[i]).getBytes(StandardCharsets.UTF_8);
+			length += escapedValues[i].length;
+		}
+		
+		final byte[] result = new byte[length];
+		int pos = 0;
+		for(int i = 0; i < this.parts.length; i++)
+		{
+			System.arraycopy(this.parts[i], 0, result, pos, this.parts[i].length);
+			pos += this.parts[i].length;
+			if(i < escapedValues.length)
+			{
+				System.arraycopy(escapedValues[i], 0, result, pos, escapedValues[i].length);
+				pos += escapedValues[i].length;
+			}
+		}
+		return result;
+	}
+	
+	static String escape(final String value)
+	{
+		StringBuilder sb = null;
+		for(int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+			final String replacement = switch(c)
+			{
+				case '"' -> "\\\"";
+				case '\\' -> "\\\\";
+				case '\n' -> "\\n";
+				case '\r' -> "\\r";
+				case '\t' -> "\\t";
+				default -> c <= MAX_CONTROL_CHAR ? String.format("\\u%04x", (int)c) : null;
+			};
+			if(replacement != null && sb == null)
+			{
+				sb = new StringBuilder(value.length() + ESCAPE_RESERVE);
+				sb.append(value, 0, i);
+			}
+			if(sb != null)
+			{
+				if(replacement != null)
+				{
+					sb.append(replacement);
+				}
+				else
+				{
+					sb.append(c);
+				}
+			}
+		}
+		return sb != null ? sb.toString() : value;
+	}
+}